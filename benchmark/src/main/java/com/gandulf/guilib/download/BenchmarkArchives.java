@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the archives of the benchmarks. The content depends only on the shape, an archive which already exists is
+ * reused by later runs.
+ */
+final class BenchmarkArchives {
+
+	enum Shape {
+		/**
+		 * 5000 deflated files of 0.5 - 2 KB in 50 directories, dominated by per entry costs.
+		 */
+		TINY_FILES,
+		/**
+		 * Two 48 MB files, one deflated and one stored, dominated by the copy loops.
+		 */
+		HUGE_FILES,
+		/**
+		 * 200 files of 4 KB - 1 MB, alternately stored and deflated with level 1, 6 and 9.
+		 */
+		MIXED
+	}
+
+	private static final String[] WORDS = { "sword", "shield", "talent", "spell", "attribute", "hero", "dungeon",
+			"arcane", "potion", "armor", "quest", "dragon", "scroll", "torch", "rope", "map" };
+
+	private static final int[] LEVELS = { -1, 1, 6, 9 };
+
+	private BenchmarkArchives() {
+	}
+
+	static File get(Shape shape) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "guilib-benchmark");
+		File file = new File(dir, shape.name().toLowerCase() + ".zip");
+		if (!file.isFile()) {
+			dir.mkdirs();
+			File tmp = new File(dir, file.getName() + ".tmp");
+			write(shape, tmp);
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not create " + file);
+			}
+		}
+		return file;
+	}
+
+	private static void write(Shape shape, File file) throws IOException {
+		Random random = new Random(shape.ordinal());
+		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			switch (shape) {
+			case TINY_FILES:
+				for (int i = 0; i < 50; i++) {
+					putDirectory(out, "d" + i + "/");
+				}
+				for (int i = 0; i < 5000; i++) {
+					put(out, "d" + (i % 50) + "/f" + i + ".txt", text(random, 512 + random.nextInt(1536)),
+							Deflater.DEFAULT_COMPRESSION);
+				}
+				break;
+			case HUGE_FILES:
+				putDirectory(out, "huge/");
+				put(out, "huge/text.bin", text(random, 48 * 1024 * 1024), Deflater.DEFAULT_COMPRESSION);
+				put(out, "huge/random.bin", bytes(random, 48 * 1024 * 1024), -1);
+				break;
+			case MIXED:
+				putDirectory(out, "mixed/");
+				for (int i = 0; i < 200; i++) {
+					int size = 4096 + random.nextInt(1024 * 1024 - 4096);
+					byte[] data = i % 8 == 0 ? bytes(random, size) : text(random, size);
+					put(out, "mixed/f" + i + ".dat", data, LEVELS[i % LEVELS.length]);
+				}
+				break;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Like the archives of real packages, the stream extractor relies on them to create the directories.
+	 */
+	private static void putDirectory(ZipOutputStream out, String name) throws IOException {
+		out.putNextEntry(new ZipEntry(name));
+		out.closeEntry();
+	}
+
+	/**
+	 * @param level
+	 *            deflate level or -1 to store the entry
+	 */
+	private static void put(ZipOutputStream out, String name, byte[] data, int level) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (level < 0) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		} else {
+			entry.setMethod(ZipEntry.DEFLATED);
+			out.setLevel(level);
+		}
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	/**
+	 * Compresses to about a third, like the text and xml content of real packages.
+	 */
+	private static byte[] text(Random random, int size) {
+		StringBuilder text = new StringBuilder(size + 16);
+		while (text.length() < size) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000))
+					.append(random.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		text.setLength(size);
+		return text.toString().getBytes(ZipIndex.UTF8);
+	}
+
+	/**
+	 * Does not compress, like images and audio.
+	 */
+	private static byte[] bytes(Random random, int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracts the generated archives with the copy loops used by <code>UnzipIntentService.unzip</code>: the random
+ * access path on one and on all cores, and the sequential stream. The primary score is archives per second, the
+ * <code>megabytes</code> counter the uncompressed MB written per second. Run with <code>-prof gc</code> for the
+ * allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ExtractionBenchmark {
+
+	@Param({ "TINY_FILES", "HUGE_FILES", "MIXED" })
+	public String shape;
+
+	@Param({ "65536", "262144", "1048576" })
+	public int bufferSize;
+
+	private File archiveFile;
+
+	private long totalSize;
+
+	private BufferPool bufferPool;
+
+	private File outputDir;
+
+	/**
+	 * Uncompressed bytes written, reported as MB per second next to the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Throughput {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createArchive() throws IOException {
+		archiveFile = BenchmarkArchives.get(BenchmarkArchives.Shape.valueOf(shape));
+		ZipArchive archive = open();
+		try {
+			totalSize = archive.getTotalSize();
+		} finally {
+			archive.close();
+		}
+		bufferPool = new BufferPool(bufferSize);
+	}
+
+	@Setup(Level.Invocation)
+	public void createOutputDir() throws IOException {
+		outputDir = File.createTempFile("extract", "", archiveFile.getParentFile());
+		if (!outputDir.delete() || !outputDir.mkdir()) {
+			throw new IOException("Could not create " + outputDir);
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteOutputDir() {
+		delete(outputDir);
+	}
+
+	@Benchmark
+	public void randomAccess(Throughput throughput) throws IOException, InterruptedException {
+		extractRandomAccess(1);
+		throughput.megabytes += totalSize / 1e6;
+	}
+
+	@Benchmark
+	public void parallel(Throughput throughput) throws IOException, InterruptedException {
+		extractRandomAccess(Runtime.getRuntime().availableProcessors());
+		throughput.megabytes += totalSize / 1e6;
+	}
+
+	@Benchmark
+	public void stream(Throughput throughput) throws IOException {
+		StreamExtractor extractor = new StreamExtractor(outputDir);
+		extractor.setBufferPool(bufferPool);
+		extractor.extract(new FileInputStream(archiveFile), null);
+		throughput.megabytes += totalSize / 1e6;
+	}
+
+	private void extractRandomAccess(int threads) throws IOException, InterruptedException {
+		ZipArchive archive = open();
+		try {
+			ParallelExtractor extractor = new ParallelExtractor(archive, outputDir, threads);
+			extractor.setBufferPool(bufferPool);
+			extractor.extract(null);
+		} finally {
+			archive.close();
+		}
+	}
+
+	private ZipArchive open() throws IOException {
+		return new ZipArchive(new RandomAccessFile(archiveFile, "r").getChannel());
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
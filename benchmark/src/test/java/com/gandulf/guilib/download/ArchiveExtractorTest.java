@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The extraction of an archive while it is downloaded has to produce the same install as the extraction of the
+ * downloaded file, and has to apply the same checks.
+ */
+public class ArchiveExtractorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpStub server;
+
+	private File archive;
+
+	@Before
+	public void setUp() throws IOException {
+		byte[] content = createArchive();
+		archive = folder.newFile("package.zip");
+		Files.write(archive.toPath(), content);
+
+		server = new HttpStub();
+		server.setContent(content, "\"v1\"", null);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void pipelinedEqualsSequential() throws Exception {
+		assertSameInstall(extractBatch(0, false), extractPipelined(false));
+	}
+
+	@Test
+	public void pipelinedEqualsParallel() throws Exception {
+		assertSameInstall(extractBatch(4, false), extractPipelined(false));
+	}
+
+	@Test
+	public void pipelinedEqualsSequentialPacked() throws Exception {
+		File expected = extractBatch(0, true);
+		File actual = extractPipelined(true);
+
+		// without the central directory only entries with their size in the local header can be packed, the others
+		// are written as files. The digests cover the packed entries as well.
+		assertArrayEquals(Files.readAllBytes(new File(expected, ".package.sha256").toPath()),
+				Files.readAllBytes(new File(actual, ".package.sha256").toPath()));
+		assertArrayEquals(Files.readAllBytes(new File(expected, ".package.manifest").toPath()),
+				Files.readAllBytes(new File(actual, ".package.manifest").toPath()));
+		assertTrue(new File(actual, ".package.pack").length() > 0);
+
+		ZipFile zip = new ZipFile(archive);
+		try {
+			for (ZipEntry entry : Collections.list(zip.entries())) {
+				File file = new File(actual, entry.getName());
+				if (!entry.isDirectory() && file.isFile()) {
+					assertArrayEquals(entry.getName(), read(zip, entry), Files.readAllBytes(file.toPath()));
+				}
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void streamRejectsNamesOutsideBaseDir() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		out.putNextEntry(new ZipEntry("../evil.txt"));
+		out.write(new byte[] { 1, 2, 3 });
+		out.closeEntry();
+		out.close();
+
+		File dir = folder.newFolder("install");
+		try {
+			new ArchiveExtractor(dir, "package").extract(new ByteArrayInputStream(bytes.toByteArray()));
+			fail("the entry escapes the output directory");
+		} catch (ZipException expected) {
+		}
+		assertFalse(new File(dir.getParentFile(), "evil.txt").exists());
+	}
+
+	@Test
+	public void extractClosesStream() throws Exception {
+		ClosingStream in = new ClosingStream(Files.readAllBytes(archive.toPath()));
+		new ArchiveExtractor(folder.newFolder(), "package").extract(in);
+		assertTrue(in.closed);
+	}
+
+	@Test
+	public void cancelBeforeStartClosesStream() throws Exception {
+		final List<Runnable> queued = new ArrayList<>();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		};
+		ClosingStream in = new ClosingStream(new byte[0]);
+		File dir = folder.newFolder();
+		Future<ExtractionMetrics> future = new ArchiveExtractor(dir, "package").submit(executor, in);
+		assertTrue(future.cancel(false));
+		assertTrue(in.closed);
+
+		// the executor still runs the canceled task, it must not touch the closed stream
+		queued.get(0).run();
+		assertFalse(new File(dir, ".package.manifest").exists());
+	}
+
+	private static class ClosingStream extends ByteArrayInputStream {
+		private volatile boolean closed;
+
+		ClosingStream(byte[] content) {
+			super(content);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+
+	private File extractBatch(int threads, boolean pack) throws Exception {
+		File dir = folder.newFolder();
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setThreads(threads);
+		extractor.setVerify(true);
+		extractor.setPackThreshold(pack ? PackWriter.DEFAULT_THRESHOLD : 0);
+		extractor.extract(archive);
+		return dir;
+	}
+
+	private File extractPipelined(boolean pack) throws Exception {
+		File dir = folder.newFolder();
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setVerify(true);
+		extractor.setPackThreshold(pack ? PackWriter.DEFAULT_THRESHOLD : 0);
+		DownloadPipe pipe = new DownloadPipe(server.getUrl());
+		extractor.extract(pipe);
+		assertEquals(archive.length(), pipe.getBytesReceived());
+		return dir;
+	}
+
+	private static void assertSameInstall(File expected, File actual) throws IOException {
+		Map<String, byte[]> expectedFiles = list(expected);
+		Map<String, byte[]> actualFiles = list(actual);
+		assertEquals(expectedFiles.keySet(), actualFiles.keySet());
+		assertTrue(expectedFiles.containsKey(".package.manifest"));
+		assertTrue(expectedFiles.containsKey(".package.sha256"));
+		for (Map.Entry<String, byte[]> file : expectedFiles.entrySet()) {
+			assertArrayEquals(file.getKey(), file.getValue(), actualFiles.get(file.getKey()));
+		}
+	}
+
+	private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+		InputStream in = zip.getInputStream(entry);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the contents of all files below <code>dir</code> by their relative path
+	 */
+	private static Map<String, byte[]> list(File dir) throws IOException {
+		Map<String, byte[]> files = new TreeMap<>();
+		list(dir, "", files);
+		return files;
+	}
+
+	private static void list(File dir, String prefix, Map<String, byte[]> files) throws IOException {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				files.put(prefix + file.getName() + "/", new byte[0]);
+				list(file, prefix + file.getName() + "/", files);
+			} else {
+				files.put(prefix + file.getName(), Files.readAllBytes(file.toPath()));
+			}
+		}
+	}
+
+	/**
+	 * Deflated entries are written with data descriptors, like archives created on the fly, stored entries with their
+	 * sizes in the local header.
+	 */
+	private static byte[] createArchive() throws IOException {
+		Random random = new Random(7);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		for (int d = 0; d < 5; d++) {
+			out.putNextEntry(new ZipEntry("dir" + d + "/"));
+			out.closeEntry();
+			for (int f = 0; f < 20; f++) {
+				// tiny, small and large files, a third of them incompressible
+				int size = f % 5 == 0 ? 200 * 1024 + random.nextInt(100 * 1024) : random.nextInt(8 * 1024);
+				byte[] data = new byte[size];
+				if (f % 3 == 0) {
+					random.nextBytes(data);
+				} else {
+					for (int i = 0; i < size; i++) {
+						data[i] = (byte) ('a' + random.nextInt(4));
+					}
+				}
+				ZipEntry entry = new ZipEntry("dir" + d + "/file" + f + ".dat");
+				if (f % 4 == 0) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(size);
+					entry.setCompressedSize(size);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+				out.closeEntry();
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+}
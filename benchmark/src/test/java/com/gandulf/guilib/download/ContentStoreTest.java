@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentStoreTest {
+
+	private static final byte[] CONTENT = "shared content".getBytes();
+
+	private static final String DIGEST = "00ff";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ContentStore store;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new ContentStore(new File(folder.getRoot(), ".store"), new NioLinks());
+		file = folder.newFile("a.txt");
+		Files.write(file.toPath(), CONTENT);
+	}
+
+	@Test
+	public void linksStoredContent() throws IOException {
+		store.add(file, 42, CONTENT.length, DIGEST);
+
+		assertTrue(store.find(42, CONTENT.length + 1).isEmpty());
+		List<File> blobs = store.find(42, CONTENT.length);
+		assertEquals(1, blobs.size());
+		assertEquals(DIGEST, ContentStore.getDigest(blobs.get(0)));
+
+		File target = new File(folder.getRoot(), "b.txt");
+		Files.write(target.toPath(), new byte[1]);
+		assertTrue(store.materialize(blobs.get(0), target));
+		assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+		assertTrue(store.isEnabled());
+	}
+
+	@Test
+	public void prunesUnlinkedBlobsOnLastRelease() throws IOException {
+		store.acquire();
+		store.add(file, 42, CONTENT.length, DIGEST);
+		File blob = store.find(42, CONTENT.length).get(0);
+		File kept = folder.newFile("kept.txt");
+		Files.write(kept.toPath(), CONTENT);
+		store.add(kept, 7, CONTENT.length, DIGEST);
+
+		// a second extraction may be about to link the blob whose last package file is gone
+		ContentStore other = new ContentStore(store.getRoot(), new NioLinks());
+		other.acquire();
+		assertTrue(file.delete());
+		assertEquals(0, store.release());
+		assertTrue(blob.exists());
+
+		assertEquals(1, other.release());
+		assertFalse(blob.exists());
+		assertFalse(blob.getParentFile().exists());
+		assertEquals(1, store.find(7, CONTENT.length).size());
+	}
+
+	private static class NioLinks implements ContentStore.Links {
+		@Override
+		public boolean link(File existing, File link) {
+			try {
+				Files.createLink(link.toPath(), existing.toPath());
+				return true;
+			} catch (IOException | UnsupportedOperationException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public int getLinkCount(File file) {
+			try {
+				return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+			} catch (IOException | UnsupportedOperationException e) {
+				return -1;
+			}
+		}
+	}
+}
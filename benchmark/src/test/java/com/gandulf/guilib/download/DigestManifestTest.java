@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The digests computed while the files are written have to match those of the files on disk.
+ */
+public class DigestManifestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File archive;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		archive = folder.newFile("package.zip");
+		Random random = new Random(11);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (int i = 0; i < 12; i++) {
+				// larger than one buffer every few entries
+				byte[] data = new byte[i % 4 == 0 ? 200 * 1024 + i : random.nextInt(2048)];
+				random.nextBytes(data);
+				ZipEntry entry = new ZipEntry("dir" + (i % 3) + "/file" + i + ".dat");
+				if (i % 2 == 0) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		dir = folder.newFolder("install");
+	}
+
+	@Test
+	public void hashesSequentialExtraction() throws Exception {
+		newExtractor(0, false).extract(archive);
+		assertDigests(12);
+	}
+
+	@Test
+	public void hashesParallelExtraction() throws Exception {
+		newExtractor(4, false).extract(archive);
+		assertDigests(12);
+	}
+
+	@Test
+	public void hashesStreamExtraction() throws Exception {
+		newExtractor(0, false).extract(new FileInputStream(archive));
+		assertDigests(12);
+	}
+
+	@Test
+	public void keepsDigestsOfSkippedEntries() throws Exception {
+		newExtractor(0, true).extract(archive);
+		newExtractor(0, true).extract(archive);
+		assertDigests(12);
+	}
+
+	@Test
+	public void hashesEntriesResumedWithoutDigest() throws Exception {
+		// an earlier attempt without verifying extracted one entry
+		ArchiveExtractor first = new ArchiveExtractor(dir, "package");
+		first.extract(archive);
+		ExtractionJournal journal = new ExtractionJournal(first.getJournalFile());
+		ExtractionManifest manifest = new ExtractionManifest(first.getManifestFile());
+		String name = manifest.getNames().iterator().next();
+		journal.markCompleted(name, manifest.getSize(name), crc(new File(dir, name)));
+		journal.close();
+
+		newExtractor(0, false).extract(archive);
+		assertDigests(12);
+	}
+
+	private ArchiveExtractor newExtractor(int threads, boolean update) {
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setThreads(threads);
+		extractor.setUpdate(update);
+		extractor.setVerify(true);
+		return extractor;
+	}
+
+	private void assertDigests(int count) throws Exception {
+		Map<String, String> digests = new TreeMap<>();
+		List<String> lines = Files.readAllLines(new File(dir, ".package.sha256").toPath());
+		for (String line : lines) {
+			digests.put(line.substring(66), line.substring(0, 64));
+		}
+		assertEquals(count, digests.size());
+		for (Map.Entry<String, String> digest : digests.entrySet()) {
+			assertEquals(digest.getKey(), sha256(new File(dir, digest.getKey())), digest.getValue());
+		}
+	}
+
+	private static String sha256(File file) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		return hex.toString();
+	}
+
+	private static long crc(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(file.toPath()));
+		return crc.getValue();
+	}
+}
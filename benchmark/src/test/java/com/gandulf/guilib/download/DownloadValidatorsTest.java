@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DownloadValidatorsTest {
+
+	private static final String DATE = "Mon, 05 Oct 2026 10:00:00 GMT";
+
+	private HttpStub server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new HttpStub();
+		server.setContent(new byte[1000], "\"v1\"", DATE);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void firstRequestIsUnconditional() throws Exception {
+		DownloadValidators validators = DownloadValidators.request(server.getUrl(), null);
+
+		assertFalse(validators.isNotModified());
+		assertEquals("\"v1\"", validators.getETag());
+		assertEquals(DATE, validators.getLastModified());
+		assertEquals(1000, validators.getContentLength());
+
+		HttpStub.Request request = server.getRequests().get(0);
+		assertEquals("HEAD", request.method);
+		assertNull(request.ifNoneMatch);
+		assertNull(request.ifModifiedSince);
+	}
+
+	@Test
+	public void notModifiedAnswer() throws Exception {
+		DownloadValidators cached = DownloadValidators.request(server.getUrl(), null);
+		server.clearRequests();
+
+		DownloadValidators validators = DownloadValidators.request(server.getUrl(), cached);
+
+		assertTrue(validators.isNotModified());
+		assertEquals("\"v1\"", validators.getETag());
+		assertEquals(1000, validators.getContentLength());
+		HttpStub.Request request = server.getRequests().get(0);
+		assertEquals("\"v1\"", request.ifNoneMatch);
+		assertEquals(DATE, request.ifModifiedSince);
+	}
+
+	@Test
+	public void changedETag() throws Exception {
+		DownloadValidators cached = DownloadValidators.request(server.getUrl(), null);
+		server.setContent(new byte[1000], "\"v2\"", DATE);
+
+		DownloadValidators validators = DownloadValidators.request(server.getUrl(), cached);
+
+		assertFalse(validators.isNotModified());
+		assertEquals("\"v2\"", validators.getETag());
+	}
+
+	@Test
+	public void sameStrongETagFromServerIgnoringConditions() throws Exception {
+		DownloadValidators cached = DownloadValidators.request(server.getUrl(), null);
+		server.setConditional(false);
+
+		assertTrue(DownloadValidators.request(server.getUrl(), cached).isNotModified());
+	}
+
+	@Test
+	public void weakETagFromServerIgnoringConditions() throws Exception {
+		server.setContent(new byte[1000], "W/\"v1\"", DATE);
+		DownloadValidators cached = DownloadValidators.request(server.getUrl(), null);
+		server.setConditional(false);
+
+		// a weak ETag does not promise identical bytes
+		assertFalse(DownloadValidators.request(server.getUrl(), cached).isNotModified());
+	}
+
+	@Test
+	public void lastModifiedAndSizeWithoutETag() throws Exception {
+		server.setContent(new byte[1000], null, DATE);
+		DownloadValidators cached = DownloadValidators.request(server.getUrl(), null);
+		server.setConditional(false);
+
+		assertTrue(DownloadValidators.request(server.getUrl(), cached).isNotModified());
+
+		server.setContent(new byte[1001], null, DATE);
+		assertFalse(DownloadValidators.request(server.getUrl(), cached).isNotModified());
+	}
+
+	@Test
+	public void encodedValidatorsSurviveDecoding() {
+		DownloadValidators validators = new DownloadValidators("\"v1\"", DATE, 1000);
+		DownloadValidators decoded = DownloadValidators.decode(validators.encode());
+
+		assertEquals("\"v1\"", decoded.getETag());
+		assertEquals(DATE, decoded.getLastModified());
+		assertEquals(1000, decoded.getContentLength());
+		assertTrue(decoded.isSameVersion(validators));
+		assertNull(DownloadValidators.decode("garbage"));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The crc of every entry is checked, also without verifying and for stored entries.
+ */
+public class EntryWriterTest {
+
+	private static final byte[] CONTENT = "stored content which gets damaged in the archive".getBytes();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void parallelRejectsDamagedStoredEntry() throws Exception {
+		assertRejected(4, false);
+	}
+
+	@Test
+	public void sequentialUpdateRejectsDamagedStoredEntry() throws Exception {
+		// the update needs the central directory, it reads the archive like the parallel mode
+		assertRejected(0, true);
+	}
+
+	private void assertRejected(int threads, boolean update) throws Exception {
+		File archive = createDamagedArchive();
+		File dir = folder.newFolder();
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setThreads(threads);
+		extractor.setUpdate(update);
+		try {
+			extractor.extract(archive);
+			fail("the crc does not match");
+		} catch (ZipException expected) {
+		}
+		assertFalse(new File(dir, "stored.txt").exists());
+		// a journal listing the entry would skip it on the next attempt
+		File journal = extractor.getJournalFile();
+		assertFalse(journal.isFile() && new String(Files.readAllBytes(journal.toPath()), "UTF-8").contains("stored"));
+	}
+
+	private File createDamagedArchive() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		out.putNextEntry(new ZipEntry("deflated.txt"));
+		out.write(new byte[4096]);
+		out.closeEntry();
+
+		CRC32 crc = new CRC32();
+		crc.update(CONTENT);
+		ZipEntry entry = new ZipEntry("stored.txt");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(CONTENT.length);
+		entry.setCompressedSize(CONTENT.length);
+		entry.setCrc(crc.getValue());
+		out.putNextEntry(entry);
+		out.write(CONTENT);
+		out.closeEntry();
+		out.close();
+
+		byte[] zip = bytes.toByteArray();
+		int offset = indexOf(zip, CONTENT);
+		zip[offset + 5] ^= 0x20;
+		File file = folder.newFile();
+		Files.write(file.toPath(), zip);
+		return file;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+				return i;
+			}
+		}
+		throw new AssertionError("content not found");
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A paused extraction keeps its completed entries for a resume, a canceled one removes what it has written.
+ */
+public class ExtractionControlTest {
+
+	private static final int FILES = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<String, byte[]> contents = new LinkedHashMap<>();
+
+	private File archive;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		archive = folder.newFile("package.zip");
+		Random random = new Random(5);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (int i = 0; i < FILES; i++) {
+				byte[] data = new byte[64 * 1024];
+				random.nextBytes(data);
+				String name = "file" + i + ".dat";
+				out.putNextEntry(new ZipEntry(name));
+				out.write(data);
+				out.closeEntry();
+				contents.put(name, data);
+			}
+		} finally {
+			out.close();
+		}
+		dir = folder.newFolder("install");
+	}
+
+	@Test
+	public void pausedSequentialExtractionResumes() throws Exception {
+		assertResumes(0);
+	}
+
+	@Test
+	public void pausedParallelExtractionResumes() throws Exception {
+		assertResumes(4);
+	}
+
+	@Test
+	public void canceledStreamExtractionRemovesItsFiles() throws Exception {
+		ExtractionControl control = new ExtractionControl(-1);
+		ArchiveExtractor extractor = newExtractor(0, control, false);
+		try {
+			extractor.extract(new FileInputStream(archive));
+			fail("the extraction has been canceled");
+		} catch (InterruptedIOException expected) {
+			assertEquals("Canceled", expected.getMessage());
+		}
+
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void cancelOverridesPause() throws Exception {
+		ExtractionControl control = new ExtractionControl(1);
+		control.checkpoint();
+		control.pause();
+		assertTrue(control.isPaused());
+		control.cancel();
+		control.pause();
+		assertFalse(control.isPaused());
+		assertTrue(control.isCanceled());
+		try {
+			control.checkpoint();
+			fail("the job has been canceled");
+		} catch (InterruptedIOException expected) {
+			assertEquals("Canceled", expected.getMessage());
+		}
+	}
+
+	private void assertResumes(int threads) throws Exception {
+		ExtractionControl control = new ExtractionControl(-1);
+		ArchiveExtractor extractor = newExtractor(threads, control, true);
+		try {
+			extractor.extract(archive);
+			fail("the extraction has been paused");
+		} catch (InterruptedIOException expected) {
+			assertEquals("Paused", expected.getMessage());
+		}
+		ExtractionJournal journal = new ExtractionJournal(extractor.getJournalFile());
+		int completed = journal.size();
+		assertTrue(completed >= 1 && completed < FILES);
+		assertFalse(extractor.getManifestFile().exists());
+
+		ExtractionMetrics metrics = newExtractor(threads, null, true).extract(archive);
+
+		assertEquals(completed, metrics.getSkippedEntries());
+		assertEquals(FILES - completed, metrics.getEntries());
+		for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+			assertArrayEquals(content.getKey(), content.getValue(),
+					Files.readAllBytes(new File(dir, content.getKey()).toPath()));
+		}
+		assertFalse(extractor.getJournalFile().exists());
+	}
+
+	/**
+	 * @param control
+	 *            paused or canceled once the first file has been written, may be <code>null</code>
+	 */
+	private ArchiveExtractor newExtractor(int threads, final ExtractionControl control, final boolean pause) {
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setThreads(threads);
+		if (control != null) {
+			extractor.setControl(control);
+			extractor.setFileListener(new ExtractedFileListener() {
+				@Override
+				public void onFileWritten(File file) {
+					if (pause) {
+						control.pause();
+					} else {
+						control.cancel();
+					}
+				}
+			});
+		}
+		return extractor;
+	}
+}
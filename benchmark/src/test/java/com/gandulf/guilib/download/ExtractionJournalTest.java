@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionJournalTest {
+
+	private static final byte[] A = "first file".getBytes();
+
+	private static final byte[] B = "second file".getBytes();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File archive;
+
+	private File dir;
+
+	private ArchiveExtractor extractor;
+
+	@Before
+	public void setUp() throws IOException {
+		archive = folder.newFile("package.zip");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			out.putNextEntry(new ZipEntry("a.txt"));
+			out.write(A);
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("b.txt"));
+			out.write(B);
+			out.closeEntry();
+		} finally {
+			out.close();
+		}
+		dir = folder.newFolder("install");
+		extractor = new ArchiveExtractor(dir, "package");
+	}
+
+	@Test
+	public void resumeSkipsJournaledEntries() throws Exception {
+		journal("a.txt", A);
+		// same length, different content: a skipped entry is not written again
+		byte[] marker = new byte[A.length];
+		Files.write(new File(dir, "a.txt").toPath(), marker);
+
+		extractor.extract(archive);
+
+		assertArrayEquals(marker, Files.readAllBytes(new File(dir, "a.txt").toPath()));
+		assertArrayEquals(B, Files.readAllBytes(new File(dir, "b.txt").toPath()));
+		assertFalse(extractor.getJournalFile().exists());
+		assertEquals(2, new ExtractionManifest(extractor.getManifestFile()).size());
+	}
+
+	@Test
+	public void resumeExtractsTruncatedEntriesAgain() throws Exception {
+		journal("a.txt", A);
+		Files.write(new File(dir, "a.txt").toPath(), new byte[A.length - 1]);
+
+		extractor.extract(archive);
+
+		assertArrayEquals(A, Files.readAllBytes(new File(dir, "a.txt").toPath()));
+	}
+
+	@Test
+	public void ignoresTruncatedLastLine() throws Exception {
+		File file = folder.newFile("journal");
+		ExtractionJournal journal = new ExtractionJournal(file);
+		journal.markCompleted("a.txt", A.length, crc(A));
+		journal.close();
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write("12345".getBytes());
+		out.close();
+
+		journal = new ExtractionJournal(file);
+		assertEquals(1, journal.size());
+		journal.markCompleted("b.txt", B.length, crc(B));
+		journal.close();
+
+		journal = new ExtractionJournal(file);
+		assertEquals(2, journal.size());
+		assertTrue(journal.getNames().contains("b.txt"));
+		assertEquals(B.length, journal.getSize("b.txt"));
+		journal.delete();
+		assertFalse(file.exists());
+	}
+
+	private void journal(String name, byte[] content) throws IOException {
+		ExtractionJournal journal = new ExtractionJournal(extractor.getJournalFile());
+		journal.markCompleted(name, content.length, crc(content));
+		journal.close();
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+}
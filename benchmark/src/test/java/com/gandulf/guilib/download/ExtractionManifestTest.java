@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * An update extracts only the entries which changed since the installed version and removes files which are no
+ * longer part of the package.
+ */
+public class ExtractionManifestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("install");
+	}
+
+	@Test
+	public void updateSkipsUnchangedAndRemovesStaleFiles() throws Exception {
+		Map<String, String> v1 = new LinkedHashMap<>();
+		v1.put("same.txt", "unchanged");
+		v1.put("changed.txt", "old content");
+		v1.put("dir/stale.txt", "removed in v2");
+		extract(v1, true);
+
+		// same length, different content: a skipped entry is not written again
+		Files.write(new File(dir, "same.txt").toPath(), "UNCHANGED".getBytes());
+
+		Map<String, String> v2 = new LinkedHashMap<>();
+		v2.put("same.txt", "unchanged");
+		v2.put("changed.txt", "new content!");
+		v2.put("added.txt", "added in v2");
+		ExtractionMetrics metrics = extract(v2, true);
+
+		assertEquals("UNCHANGED", read("same.txt"));
+		assertEquals("new content!", read("changed.txt"));
+		assertEquals("added in v2", read("added.txt"));
+		assertFalse(new File(dir, "dir/stale.txt").exists());
+		assertEquals(1, metrics.getSkippedEntries());
+
+		ExtractionManifest manifest = new ExtractionManifest(new File(dir, ".package.manifest"));
+		assertEquals(new HashSet<>(Arrays.asList("same.txt", "changed.txt", "added.txt")), manifest.getNames());
+	}
+
+	@Test
+	public void updateReplacesModifiedFiles() throws Exception {
+		Map<String, String> v1 = new LinkedHashMap<>();
+		v1.put("file.txt", "content");
+		extract(v1, true);
+		// the length differs from the manifest, the file is extracted again
+		Files.write(new File(dir, "file.txt").toPath(), "truncated".getBytes());
+
+		extract(v1, true);
+
+		assertEquals("content", read("file.txt"));
+	}
+
+	@Test
+	public void extractWithoutUpdateKeepsOtherFiles() throws Exception {
+		Map<String, String> v1 = new LinkedHashMap<>();
+		v1.put("a.txt", "a");
+		v1.put("b.txt", "b");
+		extract(v1, false);
+
+		Map<String, String> v2 = new LinkedHashMap<>();
+		v2.put("a.txt", "a2");
+		extract(v2, false);
+
+		assertEquals("a2", read("a.txt"));
+		assertTrue(new File(dir, "b.txt").exists());
+	}
+
+	@Test
+	public void savesAndLoadsEntries() throws IOException {
+		File file = new File(folder.getRoot(), "manifest");
+		ExtractionManifest manifest = new ExtractionManifest(file);
+		manifest.markCompleted("dir/with tab\tname", 12, 0xFFFFFFFFL);
+		manifest.save();
+
+		File target = folder.newFile("target");
+		Files.write(target.toPath(), new byte[12]);
+		ExtractionManifest loaded = new ExtractionManifest(file);
+		assertEquals(12, loaded.getSize("dir/with tab\tname"));
+		assertTrue(loaded.isCompleted("dir/with tab\tname", 12, 0xFFFFFFFFL, target));
+		assertFalse(loaded.isCompleted("dir/with tab\tname", 12, 0, target));
+		assertEquals(-1, loaded.getSize("missing"));
+	}
+
+	private ExtractionMetrics extract(Map<String, String> files, boolean update) throws Exception {
+		File archive = folder.newFile();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (Map.Entry<String, String> file : files.entrySet()) {
+				out.putNextEntry(new ZipEntry(file.getKey()));
+				out.write(file.getValue().getBytes());
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setUpdate(update);
+		return extractor.extract(archive);
+	}
+
+	private String read(String name) throws IOException {
+		return new String(Files.readAllBytes(new File(dir, name).toPath()));
+	}
+}
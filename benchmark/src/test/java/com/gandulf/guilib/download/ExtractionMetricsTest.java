@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionMetricsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepsSlowestEntries() {
+		ExtractionMetrics metrics = new ExtractionMetrics();
+		long[] nanos = { 3, 9, 1, 7, 5, 8, 2 };
+		for (int i = 0; i < nanos.length; i++) {
+			metrics.addEntry("entry" + nanos[i], 10, 100, nanos[i] * 1000000);
+		}
+
+		assertArrayEquals(new String[] { "entry9", "entry8", "entry7", "entry5", "entry3" },
+				metrics.getSlowestEntries());
+		assertArrayEquals(new long[] { 9, 8, 7, 5, 3 }, metrics.getSlowestEntryMillis());
+		assertEquals(nanos.length, metrics.getEntries());
+		assertEquals(nanos.length * 10, metrics.getBytesIn());
+		assertEquals(nanos.length * 100, metrics.getBytesOut());
+	}
+
+	@Test
+	public void finishStopsTheClock() throws InterruptedException {
+		ExtractionMetrics metrics = new ExtractionMetrics();
+		metrics.addSkippedEntry();
+		metrics.finish();
+		long elapsed = metrics.getElapsedMillis();
+		Thread.sleep(20);
+
+		assertEquals(elapsed, metrics.getElapsedMillis());
+		assertEquals(1, metrics.getSkippedEntries());
+		assertEquals(0, metrics.getEntries());
+		assertEquals(0, metrics.getSlowestEntries().length);
+	}
+
+	@Test
+	public void countsExtractedArchive() throws Exception {
+		File archive = folder.newFile("package.zip");
+		Random random = new Random(13);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (int i = 0; i < 8; i++) {
+				byte[] data = new byte[random.nextInt(100 * 1024)];
+				for (int j = 0; j < data.length; j++) {
+					data[j] = (byte) random.nextInt(16);
+				}
+				out.putNextEntry(new ZipEntry("file" + i + ".dat"));
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		long compressed = 0;
+		long uncompressed = 0;
+		ZipFile zip = new ZipFile(archive);
+		try {
+			for (ZipEntry entry : Collections.list(zip.entries())) {
+				compressed += entry.getCompressedSize();
+				uncompressed += entry.getSize();
+			}
+		} finally {
+			zip.close();
+		}
+
+		for (int threads : new int[] { 0, 4 }) {
+			ArchiveExtractor extractor = new ArchiveExtractor(folder.newFolder(), "package");
+			extractor.setThreads(threads);
+			ExtractionMetrics metrics = extractor.extract(archive);
+
+			assertEquals(8, metrics.getEntries());
+			assertEquals(compressed, metrics.getBytesIn());
+			assertEquals(uncompressed, metrics.getBytesOut());
+			assertEquals(ExtractionMetrics.SLOWEST_ENTRIES, metrics.getSlowestEntries().length);
+			assertTrue(metrics.getInflateMillis() >= 0 && metrics.getWriteMillis() >= 0);
+			assertTrue(metrics.toString().startsWith("8 entries (0 skipped), " + compressed + " -> " + uncompressed));
+		}
+	}
+}
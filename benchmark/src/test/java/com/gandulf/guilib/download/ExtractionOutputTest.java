@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Files extracted into an {@link ExtractionOutput} do not touch the output directory.
+ */
+public class ExtractionOutputTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<String, byte[]> expected = new TreeMap<>();
+
+	private File archive;
+
+	private File dir;
+
+	private MemoryOutput output;
+
+	@Before
+	public void setUp() throws IOException {
+		archive = folder.newFile("package.zip");
+		Random random = new Random(3);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			for (int i = 0; i < 10; i++) {
+				byte[] data = new byte[i % 3 == 0 ? 300 * 1024 : random.nextInt(4096)];
+				random.nextBytes(data);
+				ZipEntry entry = new ZipEntry("dir/file" + i + ".dat");
+				if (i % 2 == 0) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+				out.closeEntry();
+				expected.put(entry.getName(), data);
+			}
+		} finally {
+			out.close();
+		}
+		dir = folder.newFolder("install");
+		output = new MemoryOutput(dir);
+	}
+
+	@Test
+	public void writesSequentially() throws Exception {
+		newExtractor(0).extract(archive);
+		assertOutput();
+	}
+
+	@Test
+	public void writesInParallel() throws Exception {
+		newExtractor(4).extract(archive);
+		assertOutput();
+	}
+
+	@Test
+	public void writesStream() throws Exception {
+		newExtractor(0).extract(new FileInputStream(archive));
+		assertOutput();
+	}
+
+	private ArchiveExtractor newExtractor(int threads) {
+		ArchiveExtractor extractor = new ArchiveExtractor(dir, "package");
+		extractor.setThreads(threads);
+		extractor.setVerify(true);
+		// ignored, packed entries would bypass the output
+		extractor.setPackThreshold(PackWriter.DEFAULT_THRESHOLD);
+		extractor.setOutput(output);
+		return extractor;
+	}
+
+	private void assertOutput() {
+		assertEquals(expected.keySet(), output.files.keySet());
+		for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+			assertArrayEquals(file.getKey(), file.getValue(), output.files.get(file.getKey()).toByteArray());
+		}
+		assertFalse(new File(dir, "dir/file0.dat").exists());
+		assertFalse(new File(dir, ".package.pack").exists());
+		assertTrue(new File(dir, ".package.manifest").isFile());
+	}
+
+	private static class MemoryOutput implements ExtractionOutput {
+		private final String root;
+
+		private final Map<String, ByteArrayOutputStream> files = new ConcurrentHashMap<>();
+
+		MemoryOutput(File baseDir) {
+			root = baseDir.getPath() + File.separator;
+		}
+
+		@Override
+		public WritableByteChannel open(File file) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			files.put(getName(file), content);
+			return Channels.newChannel(content);
+		}
+
+		@Override
+		public void delete(File file) {
+			files.remove(getName(file));
+		}
+
+		private String getName(File file) {
+			return file.getPath().substring(root.length()).replace(File.separatorChar, '/');
+		}
+	}
+}
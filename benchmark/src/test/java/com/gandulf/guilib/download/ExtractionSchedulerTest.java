@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExtractionSchedulerTest {
+
+	private ExtractionScheduler scheduler;
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final List<String> started = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp() throws InterruptedException {
+		scheduler = new ExtractionScheduler(1);
+		// keeps the only worker busy until every job has been queued
+		final CountDownLatch running = new CountDownLatch(1);
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0);
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void startsHigherPriorityFirst() throws InterruptedException {
+		submit("low", 0);
+		submit("high", 2);
+		submit("normal", 1);
+
+		assertEquals(Arrays.asList("high", "normal", "low"), runAll(3));
+	}
+
+	@Test
+	public void startsEqualPriorityInOrder() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			submit("job" + i, 1);
+		}
+
+		assertEquals(Arrays.asList("job0", "job1", "job2", "job3", "job4"), runAll(5));
+	}
+
+	@Test
+	public void runsJobsConcurrently() throws InterruptedException {
+		scheduler.setMaxConcurrent(2);
+		assertEquals(2, scheduler.getMaxConcurrent());
+		// the first job still blocks its worker, the second worker runs this one
+		final CountDownLatch done = new CountDownLatch(1);
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}, 0);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	private void submit(final String name, int priority) {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				started.add(name);
+			}
+		}, priority);
+	}
+
+	private List<String> runAll(int count) throws InterruptedException {
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (started.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return started;
+	}
+}
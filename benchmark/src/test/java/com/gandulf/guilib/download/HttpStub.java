@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves one file on the loopback interface, with byte ranges, If-Range and conditional requests like a static file
+ * server. Every request is recorded so tests can check what the client has asked for.
+ */
+final class HttpStub implements HttpHandler {
+
+	static final String PATH = "/package.zip";
+
+	/**
+	 * The headers of a request which matter to the download code.
+	 */
+	static final class Request {
+		final String method;
+		final String range;
+		final String ifRange;
+		final String ifNoneMatch;
+		final String ifModifiedSince;
+
+		Request(String method, Headers headers) {
+			this.method = method;
+			range = headers.getFirst("Range");
+			ifRange = headers.getFirst("If-Range");
+			ifNoneMatch = headers.getFirst("If-None-Match");
+			ifModifiedSince = headers.getFirst("If-Modified-Since");
+		}
+
+		/**
+		 * @return the number of bytes of the range or -1 if the request has none
+		 */
+		long getRangeLength() {
+			if (range == null) {
+				return -1;
+			}
+			long[] bounds = parseRange(range);
+			return bounds[1] - bounds[0] + 1;
+		}
+	}
+
+	private final HttpServer server;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+	private volatile byte[] content = new byte[0];
+	private volatile String etag;
+	private volatile String lastModified;
+
+	private volatile boolean ranges = true;
+	private volatile boolean conditional = true;
+	private volatile boolean rangesFromStart;
+	private volatile int dropAfter = -1;
+
+	HttpStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext(PATH, this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	URL getUrl() throws IOException {
+		return new URL("http", "127.0.0.1", server.getAddress().getPort(), PATH);
+	}
+
+	/**
+	 * @param etag
+	 *            sent as ETag, may be <code>null</code>
+	 */
+	void setContent(byte[] content, String etag, String lastModified) {
+		this.content = content;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Without range support every request is answered with the whole file.
+	 */
+	void setRanges(boolean ranges) {
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Like a broken proxy, every range is answered with the bytes from the start of the file.
+	 */
+	void setRangesFromStart(boolean rangesFromStart) {
+		this.rangesFromStart = rangesFromStart;
+	}
+
+	/**
+	 * Like servers which ignore If-None-Match and If-Modified-Since, every request is answered in full.
+	 */
+	void setConditional(boolean conditional) {
+		this.conditional = conditional;
+	}
+
+	/**
+	 * Closes the connection of every response after this many bytes of its body, -1 to send them completely.
+	 */
+	void setDropAfter(int dropAfter) {
+		this.dropAfter = dropAfter;
+	}
+
+	List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<>(requests);
+		}
+	}
+
+	void clearRequests() {
+		requests.clear();
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			Request request = new Request(exchange.getRequestMethod(), exchange.getRequestHeaders());
+			requests.add(request);
+
+			byte[] content = this.content;
+			String etag = this.etag;
+			String lastModified = this.lastModified;
+
+			Headers headers = exchange.getResponseHeaders();
+			if (etag != null) {
+				headers.set("ETag", etag);
+			}
+			if (lastModified != null) {
+				headers.set("Last-Modified", lastModified);
+			}
+
+			if (conditional && isNotModified(request, etag, lastModified)) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			int code = 200;
+			int start = 0;
+			int end = content.length - 1;
+			if (ranges) {
+				headers.set("Accept-Ranges", "bytes");
+				boolean sameVersion = request.ifRange == null || request.ifRange.equals(etag)
+						|| request.ifRange.equals(lastModified);
+				if (request.range != null && sameVersion) {
+					long[] bounds = parseRange(request.range);
+					start = rangesFromStart ? 0 : (int) bounds[0];
+					end = (int) Math.min(start + bounds[1] - bounds[0], content.length - 1);
+					code = 206;
+					headers.set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+				}
+			}
+
+			int length = end - start + 1;
+			if ("HEAD".equals(request.method)) {
+				headers.set("Content-Length", Integer.toString(length));
+				exchange.sendResponseHeaders(code, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(code, length);
+			OutputStream out = exchange.getResponseBody();
+			int dropAfter = this.dropAfter;
+			if (dropAfter >= 0 && dropAfter < length) {
+				// closing the exchange short of the announced length closes the connection
+				out.write(content, start, dropAfter);
+			} else {
+				out.write(content, start, length);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static boolean isNotModified(Request request, String etag, String lastModified) {
+		if (request.ifNoneMatch != null) {
+			return request.ifNoneMatch.equals(etag);
+		}
+		return request.ifModifiedSince != null && request.ifModifiedSince.equals(lastModified);
+	}
+
+	/**
+	 * @return the first and last byte of a <code>bytes=first-last</code> range
+	 */
+	private static long[] parseRange(String range) {
+		int dash = range.indexOf('-');
+		long first = Long.parseLong(range.substring("bytes=".length(), dash));
+		String last = range.substring(dash + 1);
+		return new long[] { first, last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last) };
+	}
+}
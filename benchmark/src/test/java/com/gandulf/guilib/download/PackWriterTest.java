@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the pack format which {@link PackFile} looks entries up in: records sorted by name, pointing at the content.
+ * PackFile itself depends on the service and can not be compiled here.
+ */
+public class PackWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesSortedIndex() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("b/second.txt", "second".getBytes());
+		entries.put("a.txt", "first entry".getBytes());
+		entries.put("b/\u00e4.txt", "umlaut".getBytes());
+		entries.put("empty.txt", new byte[0]);
+
+		File file = new File(folder.getRoot(), "package.pack");
+		PackWriter pack = new PackWriter(file, 64);
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			byte[] data = entry.getValue();
+			long offset = pack.reserve(entry.getKey(), data.length);
+			pack.write(entry.getKey(), offset, data.length, data, data.length);
+		}
+		pack.commit();
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		int trailer = buffer.limit() - PackWriter.TRAILER_SIZE;
+		assertEquals(PackWriter.MAGIC, buffer.getInt(trailer + 12));
+		int count = buffer.getInt(trailer + 8);
+		int index = (int) buffer.getLong(trailer);
+		int names = index + count * PackWriter.RECORD_SIZE;
+
+		List<String> sorted = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int record = index + i * PackWriter.RECORD_SIZE;
+			byte[] name = new byte[buffer.getInt(record + 16)];
+			buffer.position(names + buffer.getInt(record + 12));
+			buffer.get(name);
+			String key = new String(name, ZipIndex.UTF8);
+			sorted.add(key);
+
+			byte[] content = new byte[buffer.getInt(record + 8)];
+			buffer.position((int) buffer.getLong(record));
+			buffer.get(content);
+			assertArrayEquals(key, entries.get(key), content);
+		}
+		// unsigned byte order of the UTF-8 names, the order of a binary search over them
+		assertEquals(Arrays.asList("a.txt", "b/second.txt", "b/\u00e4.txt", "empty.txt"), sorted);
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void acceptsEntriesUpToThreshold() throws IOException {
+		PackWriter pack = new PackWriter(new File(folder.getRoot(), "package.pack"), 16);
+		try {
+			assertTrue(pack.accepts(0));
+			assertTrue(pack.accepts(16));
+			assertFalse(pack.accepts(17));
+			// the size of entries with a data descriptor is unknown
+			assertFalse(pack.accepts(-1));
+
+			assertEquals(0, pack.reserve("a", 10));
+			assertEquals(10, pack.reserve("b", 16));
+			assertEquals(26, pack.reserve("c", 0));
+		} finally {
+			pack.abort();
+		}
+	}
+
+	@Test
+	public void rejectsContentLargerThanReserved() throws IOException {
+		PackWriter pack = new PackWriter(new File(folder.getRoot(), "package.pack"), 16);
+		try {
+			long offset = pack.reserve("a", 2);
+			pack.write("a", offset, 2, new byte[3], 3);
+			fail("the content does not fit its reservation");
+		} catch (ZipException expected) {
+		} finally {
+			pack.abort();
+		}
+	}
+
+	@Test
+	public void abortKeepsPreviousPack() throws IOException {
+		File file = new File(folder.getRoot(), "package.pack");
+		PackWriter pack = new PackWriter(file, 16);
+		pack.write("a", pack.reserve("a", 1), 1, new byte[] { 1 }, 1);
+		pack.commit();
+		byte[] previous = Files.readAllBytes(file.toPath());
+
+		pack = new PackWriter(file, 16);
+		pack.write("b", pack.reserve("b", 1), 1, new byte[] { 2 }, 1);
+		pack.abort();
+
+		assertArrayEquals(previous, Files.readAllBytes(file.toPath()));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+}
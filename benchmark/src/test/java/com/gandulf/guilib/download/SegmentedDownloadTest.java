@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedDownloadTest {
+
+	private static final int LENGTH = 4 * 1024 * 1024 + 123;
+
+	private static final int DROP_AFTER = 300 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpStub server;
+
+	private byte[] content;
+
+	private File target;
+
+	@Before
+	public void setUp() throws IOException {
+		content = random(1, LENGTH);
+		server = new HttpStub();
+		server.setContent(content, "\"v1\"", "Mon, 05 Oct 2026 10:00:00 GMT");
+		target = new File(folder.getRoot(), "package.zip");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void downloadsRangesInParallel() throws Exception {
+		new SegmentedDownload(server.getUrl(), target, 4).download();
+
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		int ranges = 0;
+		for (HttpStub.Request request : server.getRequests()) {
+			if (!"bytes=0-0".equals(request.range)) {
+				assertEquals("\"v1\"", request.ifRange);
+				ranges++;
+			}
+		}
+		assertEquals(4, ranges);
+		assertFalse(new File(target.getPath() + ".segments").exists());
+	}
+
+	@Test
+	public void resumesInterruptedDownload() throws Exception {
+		server.setDropAfter(DROP_AFTER);
+		try {
+			new SegmentedDownload(server.getUrl(), target, 4).download();
+			fail("the connections have been closed early");
+		} catch (IOException expected) {
+		}
+		assertTrue(new File(target.getPath() + ".segments").isFile());
+
+		server.setDropAfter(-1);
+		server.clearRequests();
+		new SegmentedDownload(server.getUrl(), target, 4).download();
+
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		long requested = 0;
+		for (HttpStub.Request request : server.getRequests()) {
+			if (!"bytes=0-0".equals(request.range)) {
+				// the server must only send the missing bytes if they belong to the same version
+				assertEquals("\"v1\"", request.ifRange);
+				requested += request.getRangeLength();
+			}
+		}
+		// at least the range which failed first has been received completely
+		assertTrue("requested " + requested, requested <= LENGTH - DROP_AFTER);
+	}
+
+	@Test
+	public void startsOverIfFileChanged() throws Exception {
+		server.setDropAfter(DROP_AFTER);
+		try {
+			new SegmentedDownload(server.getUrl(), target, 4).download();
+			fail("the connections have been closed early");
+		} catch (IOException expected) {
+		}
+
+		byte[] changed = random(2, LENGTH);
+		server.setContent(changed, "\"v2\"", "Tue, 06 Oct 2026 10:00:00 GMT");
+		server.setDropAfter(-1);
+		server.clearRequests();
+		new SegmentedDownload(server.getUrl(), target, 4).download();
+
+		assertArrayEquals(changed, Files.readAllBytes(target.toPath()));
+		long requested = 0;
+		for (HttpStub.Request request : server.getRequests()) {
+			if (!"bytes=0-0".equals(request.range)) {
+				assertEquals("\"v2\"", request.ifRange);
+				requested += request.getRangeLength();
+			}
+		}
+		assertEquals(LENGTH, requested);
+	}
+
+	@Test
+	public void readsWholeFileWithoutValidator() throws Exception {
+		server.setContent(content, null, null);
+		new SegmentedDownload(server.getUrl(), target, 4).download();
+
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		List<HttpStub.Request> requests = server.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals("bytes=0-0", requests.get(0).range);
+		assertNull(requests.get(1).range);
+	}
+
+	@Test
+	public void rejectsRangeOtherThanRequested() throws Exception {
+		server.setRangesFromStart(true);
+		try {
+			new SegmentedDownload(server.getUrl(), target, 4).download();
+			fail("the ranges do not start where they have been requested");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("received bytes 0-"));
+		}
+	}
+
+	@Test
+	public void readsWholeFileWithoutRanges() throws Exception {
+		server.setRanges(false);
+		new SegmentedDownload(server.getUrl(), target, 4).download();
+
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertEquals(1, server.getRequests().size());
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
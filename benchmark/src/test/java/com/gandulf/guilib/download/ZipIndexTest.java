@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipIndexTest {
+
+	private static final byte[] DATA = "hello".getBytes();
+
+	private static final int MAGIC = 0xFFFFFFFF;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void indexesEntries() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		out.putNextEntry(new ZipEntry("dir/"));
+		out.closeEntry();
+		out.putNextEntry(new ZipEntry("dir/a..b.txt"));
+		out.write(DATA);
+		out.closeEntry();
+		out.close();
+
+		ZipIndex index = read(bytes.toByteArray());
+		assertEquals(2, index.size());
+		assertTrue(index.isDirectory(index.indexOf("dir/")));
+		int i = index.indexOf("dir/a..b.txt");
+		assertEquals("dir/a..b.txt", index.getName(i));
+		assertEquals(DATA.length, index.getSize(i));
+		assertEquals(crc(DATA), index.getCrc(i));
+		assertEquals(-1, index.indexOf("missing"));
+		assertEquals(DATA.length, index.getTotalSize());
+	}
+
+	@Test
+	public void rejectsNamesOutsideBaseDir() throws Exception {
+		for (String name : new String[] { "../evil.txt", "/etc/evil", "a/../../evil.txt", "a/.." }) {
+			try {
+				read(craft(name, DATA.length, DATA.length, new byte[0]));
+				fail(name + " escapes the output directory");
+			} catch (ZipException expected) {
+			}
+		}
+		ZipIndex.checkName("a/..b/c");
+	}
+
+	@Test
+	public void readsZip64Sizes() throws Exception {
+		ZipIndex index = read(craft("big.bin", MAGIC, MAGIC, zip64(16, DATA.length, DATA.length)));
+
+		assertEquals(DATA.length, index.getSize(0));
+		assertEquals(DATA.length, index.getCompressedSize(0));
+	}
+
+	@Test
+	public void rejectsTruncatedZip64Field() throws Exception {
+		// two values overflowed, the field only has room for one
+		assertInvalid(craft("big.bin", MAGIC, MAGIC, zip64(8, DATA.length, DATA.length)));
+	}
+
+	@Test
+	public void rejectsZip64FieldPastExtraData() throws Exception {
+		// the field claims 16 bytes but the extra data ends after 8 of them
+		byte[] extra = zip64(16, DATA.length, DATA.length);
+		byte[] truncated = new byte[4 + 8];
+		System.arraycopy(extra, 0, truncated, 0, truncated.length);
+		assertInvalid(craft("big.bin", MAGIC, MAGIC, truncated));
+	}
+
+	private void assertInvalid(byte[] zip) throws IOException {
+		try {
+			read(zip);
+			fail("the zip64 extra field is too short");
+		} catch (ZipException expected) {
+			assertEquals("Invalid zip64 extra field", expected.getMessage());
+		}
+	}
+
+	private ZipIndex read(byte[] zip) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), zip);
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return ZipIndex.read(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param length
+	 *            length of the field as written into its header
+	 */
+	private static byte[] zip64(int length, long size, long compressedSize) {
+		ByteBuffer field = ByteBuffer.allocate(4 + 16).order(ByteOrder.LITTLE_ENDIAN);
+		field.putShort((short) 1).putShort((short) length).putLong(size).putLong(compressedSize);
+		return field.array();
+	}
+
+	/**
+	 * One stored entry, the sizes and the extra field of its central directory header are written as given.
+	 */
+	private static byte[] craft(String name, int compressedSize, int size, byte[] extra) {
+		byte[] nameBytes = name.getBytes(ZipIndex.UTF8);
+		int localSize = 30 + nameBytes.length + DATA.length;
+		int centralSize = 46 + nameBytes.length + extra.length;
+		ByteBuffer zip = ByteBuffer.allocate(localSize + centralSize + 22).order(ByteOrder.LITTLE_ENDIAN);
+
+		zip.putInt(0x04034b50).putShort((short) 10).putShort((short) 0).putShort((short) 0);
+		zip.putShort((short) 0).putShort((short) 0).putInt((int) crc(DATA));
+		zip.putInt(DATA.length).putInt(DATA.length).putShort((short) nameBytes.length).putShort((short) 0);
+		zip.put(nameBytes).put(DATA);
+
+		zip.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+		zip.putShort((short) 0).putShort((short) 0).putInt((int) crc(DATA));
+		zip.putInt(compressedSize).putInt(size).putShort((short) nameBytes.length).putShort((short) extra.length);
+		zip.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt(0);
+		zip.put(nameBytes).put(extra);
+
+		zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1);
+		zip.putInt(centralSize).putInt(localSize).putShort((short) 0);
+		return zip.array();
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,648 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+
+/**
+ * Extracts a zip archive into a directory, the engine behind {@link UnzipIntentService} without any dependency on
+ * Android, services or notifications. It runs on the calling thread or is submitted to an executor:
+ *
+ * <pre>
+ * ArchiveExtractor extractor = new ArchiveExtractor(baseDir, &quot;package&quot;);
+ * extractor.setThreads(4);
+ * extractor.setProgress(progress);
+ * Future&lt;ExtractionMetrics&gt; result = extractor.submit(executor, archiveFile);
+ * </pre>
+ *
+ * The files of the install are listed in a manifest named after the package next to them. An extraction which failed
+ * or has been stopped is recorded in a journal, extracting the same archive again continues with the remaining
+ * entries. One instance runs one extraction at a time.
+ */
+public class ArchiveExtractor {
+
+	private final File baseDir;
+	private final String name;
+
+	private File journalFile;
+
+	private int threads;
+
+	private boolean update;
+
+	private boolean verify;
+
+	private ContentStore store;
+
+	private EntryWriter.Allocator allocator;
+
+	private int packThreshold;
+
+	private BufferPool bufferPool = BufferPool.getDefault();
+
+	private ExtractionProgress progress;
+
+	private ExtractedFileListener fileListener;
+
+	private ExtractionOutput output;
+
+	private ExtractionControl control = new ExtractionControl(-1);
+
+	private volatile ExtractionMetrics metrics;
+
+	/**
+	 * @param baseDir
+	 *            output directory, several packages may share it
+	 * @param name
+	 *            name of the package, it names the manifest of the install
+	 */
+	public ArchiveExtractor(File baseDir, String name) {
+		this.baseDir = baseDir;
+		this.name = name;
+	}
+
+	static File getManifestFile(File baseDir, String name) {
+		return new File(baseDir, "." + name + ".manifest");
+	}
+
+	/**
+	 * The SHA-256 digests of a verified install, in the format of <code>sha256sum</code>.
+	 */
+	static File getDigestFile(File baseDir, String name) {
+		return new File(baseDir, "." + name + ".sha256");
+	}
+
+	/**
+	 * The small files of a packed install, read with {@link PackFile}.
+	 */
+	static File getPackFile(File baseDir, String name) {
+		return new File(baseDir, "." + name + ".pack");
+	}
+
+	public File getManifestFile() {
+		return getManifestFile(baseDir, name);
+	}
+
+	public File getDigestFile() {
+		return getDigestFile(baseDir, name);
+	}
+
+	public File getPackFile() {
+		return getPackFile(baseDir, name);
+	}
+
+	/**
+	 * @return the journal set by {@link #setJournalFile(File)}, by default it is kept next to the manifest
+	 */
+	public File getJournalFile() {
+		return journalFile != null ? journalFile : new File(baseDir, "." + name + ".journal");
+	}
+
+	public void setJournalFile(File journalFile) {
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * @param threads
+	 *            0 to stream the archive sequentially, otherwise its central directory is read and the entries are
+	 *            inflated on that many workers
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(0, threads);
+	}
+
+	/**
+	 * Entries whose size and crc match the manifest of the existing install are not written again and files which
+	 * are no longer part of the archive are removed. Needs the central directory, it implies at least one worker.
+	 */
+	public void setUpdate(boolean update) {
+		this.update = update;
+	}
+
+	/**
+	 * The crc of each entry is checked and the SHA-256 digests of the files are written next to the manifest, both
+	 * computed while the files are written.
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	/**
+	 * Files up to <code>maxSize</code> bytes are not written as files, their contents are concatenated into the
+	 * {@link #getPackFile() pack} of the install. It is built anew by every extraction, its entries are never skipped
+	 * by a resume or an update.
+	 *
+	 * @param maxSize
+	 *            0 to write every entry as file, see {@link PackWriter#DEFAULT_THRESHOLD}
+	 */
+	public void setPackThreshold(int maxSize) {
+		this.packThreshold = Math.max(0, maxSize);
+	}
+
+	/**
+	 * Files are hard links into the store, contents it already has are linked instead of written. Needs the central
+	 * directory, it implies at least one worker.
+	 */
+	void setContentStore(ContentStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Preallocates large files to their uncompressed size before they are written.
+	 */
+	void setAllocator(EntryWriter.Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Receives the uncompressed bytes written and the name of the current entry, may be <code>null</code>.
+	 */
+	public void setProgress(ExtractionProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Receives every written file, e.g. to hand it on to an index or upload, may be <code>null</code>.
+	 */
+	public void setFileListener(ExtractedFileListener fileListener) {
+		this.fileListener = fileListener;
+	}
+
+	/**
+	 * Writes the files into <code>output</code> instead of the output directory, may be <code>null</code>. The pack
+	 * and the content store need files of their own, they are not used with an output. A resume or an update only
+	 * skips entries whose files exist below the output directory.
+	 */
+	public void setOutput(ExtractionOutput output) {
+		this.output = output;
+	}
+
+	/**
+	 * Lets a service job pause and cancel the extraction.
+	 */
+	void setControl(ExtractionControl control) {
+		this.control = control;
+	}
+
+	/**
+	 * Stops a running extraction after its current buffer, it fails with an
+	 * {@link java.io.InterruptedIOException}. Completely extracted entries stay in the journal, a new instance
+	 * continues with the remaining ones.
+	 */
+	public void stop() {
+		control.pause();
+	}
+
+	/**
+	 * @return the metrics of the running or last extraction, <code>null</code> before the first one
+	 */
+	public ExtractionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Estimates the space the extraction needs on the output volume before anything is written. The sizes of the
+	 * central directory are rounded up to whole blocks, every directory takes one block. Files listed by the journal
+	 * or the manifest of the installed package are replaced, they give back their recorded size. Contents a
+	 * {@link ContentStore} could link are not subtracted, the estimate errs on the safe side.
+	 *
+	 * @param channel
+	 *            the archive, its position is not moved and it is not closed
+	 * @param blockSize
+	 *            allocation unit of the output volume
+	 * @return the bytes the extraction adds to the volume, 0 if it frees more than it writes
+	 */
+	public long getRequiredSpace(FileChannel channel, long blockSize) throws IOException {
+		ZipIndex index = ZipIndex.read(channel);
+		ExtractionManifest journal = new ExtractionManifest(getJournalFile());
+		ExtractionManifest manifest = new ExtractionManifest(getManifestFile());
+		long required = 0;
+		for (int i = 0; i < index.size(); i++) {
+			if (index.isDirectory(i)) {
+				required += blockSize;
+				continue;
+			}
+			String name = index.getName(i);
+			if (packThreshold > 0 && index.getSize(i) <= packThreshold) {
+				// the previous pack is replaced once the new one is complete
+				required += index.getSize(i) + PackWriter.RECORD_SIZE + name.length();
+				continue;
+			}
+			long replaced = journal.getSize(name);
+			if (replaced < 0) {
+				replaced = manifest.getSize(name);
+			}
+			required += getBlocks(index.getSize(i), blockSize) - getBlocks(replaced, blockSize);
+		}
+		return Math.max(0, required);
+	}
+
+	private static long getBlocks(long size, long blockSize) {
+		return size <= 0 ? 0 : (size + blockSize - 1) / blockSize * blockSize;
+	}
+
+	public ExtractionMetrics extract(File archive) throws IOException, InterruptedException {
+		return extract(new RandomAccessFile(archive, "r").getChannel());
+	}
+
+	/**
+	 * Extracts the archive, continuing an earlier attempt recorded in the journal.
+	 *
+	 * @param channel
+	 *            the archive, it is closed when done
+	 */
+	public ExtractionMetrics extract(FileChannel channel) throws IOException, InterruptedException {
+		ExtractionMetrics metrics = startMetrics();
+		ExtractionProgress progress = getProgress();
+		ExtractionJournal journal = null;
+		PackWriter pack = null;
+		ContentStore contentStore = getContentStore();
+		if (contentStore != null) {
+			contentStore.acquire();
+		}
+		try {
+			control.checkpoint();
+			createBaseDir();
+			journal = new ExtractionJournal(getJournalFile());
+			ExtractionManifest manifest = new ExtractionManifest(getManifestFile());
+			DigestManifest digests = openDigests();
+			if (digests != null) {
+				// the digests are those of the installed version, the interrupted attempt has replaced these files
+				digests.removeAll(journal.getNames());
+			}
+			pack = openPack();
+			Set<String> installed = pack != null ? new HashSet<>(manifest.getNames()) : Collections.<String> emptySet();
+
+			if (threads > 0 || update || contentStore != null) {
+				// the update and the store need the crc of each entry before inflating it, only the central
+				// directory has it
+				extractRandomAccess(channel, journal, manifest, digests, pack, progress);
+			} else {
+				StreamExtractor extractor = new StreamExtractor(baseDir);
+				extractor.setBufferPool(bufferPool);
+				extractor.setAllocator(allocator);
+				extractor.setPack(pack);
+				extractor.setJournal(journal);
+				extractor.setDigests(digests);
+				extractor.setMetrics(metrics);
+				extractor.setProgress(progress);
+				extractor.setFileListener(fileListener);
+				extractor.setOutput(output);
+				ZipIndex index = readIndex(channel);
+				if (index != null) {
+					progress.setTotal(index.getTotalSize());
+					extractor.setIndex(index);
+					extractor.createDirectories(index);
+				} else {
+					progress.setTotal(-1);
+				}
+				extractor.extract(Channels.newInputStream(channel), new EntryCallback(progress));
+
+				// every entry has either been extracted now or during an earlier attempt
+				manifest.clear();
+				manifest.putAll(journal);
+			}
+			progress.finish();
+
+			finishPack(pack, installed);
+			saveDigests(digests, manifest);
+			manifest.save();
+			journal.delete();
+		} finally {
+			if (contentStore != null) {
+				contentStore.release();
+			}
+			metrics.finish();
+			if (pack != null) {
+				pack.abort();
+			}
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+				}
+			}
+			channel.close();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Extracts an archive which can only be read once, e.g. while it is being downloaded. It can not be continued,
+	 * the manifest is replaced with the entries of the stream. If the extraction is stopped the files it has added
+	 * are removed again.
+	 *
+	 * @param in
+	 *            the archive, it is closed when done
+	 */
+	public ExtractionMetrics extract(InputStream in) throws IOException {
+		ExtractionMetrics metrics = startMetrics();
+		ExtractionProgress progress = getProgress();
+		ExtractionManifest manifest = null;
+		Set<String> installed = null;
+		PackWriter pack = null;
+		try {
+			createBaseDir();
+			manifest = new ExtractionManifest(getManifestFile());
+			installed = new HashSet<>(manifest.getNames());
+			// records every entry extracted from the stream, previous contents are replaced
+			manifest.clear();
+			DigestManifest digests = openDigests();
+			pack = openPack();
+
+			StreamExtractor extractor = new StreamExtractor(baseDir);
+			extractor.setBufferPool(bufferPool);
+			extractor.setAllocator(allocator);
+			extractor.setPack(pack);
+			extractor.setJournal(manifest);
+			extractor.setDigests(digests);
+			extractor.setMetrics(metrics);
+			extractor.setProgress(progress);
+			extractor.setFileListener(fileListener);
+			extractor.setOutput(output);
+			extractor.extract(in, new EntryCallback(progress));
+			progress.finish();
+
+			finishPack(pack, installed);
+			saveDigests(digests, manifest);
+			manifest.save();
+		} catch (IOException e) {
+			if (manifest != null && (control.isPaused() || control.isCanceled())) {
+				discard(manifest.getNames(), installed);
+			}
+			throw e;
+		} finally {
+			metrics.finish();
+			if (pack != null) {
+				pack.abort();
+			}
+			// the stream extractor has closed it already, unless it failed before
+			in.close();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Runs {@link #extract(File)} on the executor.
+	 */
+	public Future<ExtractionMetrics> submit(Executor executor, final File archive) {
+		return submit(executor, new Callable<ExtractionMetrics>() {
+			@Override
+			public ExtractionMetrics call() throws Exception {
+				return extract(archive);
+			}
+		}, null);
+	}
+
+	/**
+	 * Runs {@link #extract(InputStream)} on the executor, the stream is closed when done. It is closed as well if the
+	 * future is canceled before the extraction has started.
+	 */
+	public Future<ExtractionMetrics> submit(Executor executor, final InputStream in) {
+		return submit(executor, new Callable<ExtractionMetrics>() {
+			@Override
+			public ExtractionMetrics call() throws Exception {
+				return extract(in);
+			}
+		}, in);
+	}
+
+	/**
+	 * Canceling the future stops the extraction like {@link #stop()}.
+	 *
+	 * @param source
+	 *            closed if the task never runs, may be <code>null</code>
+	 */
+	private Future<ExtractionMetrics> submit(Executor executor, Callable<ExtractionMetrics> task,
+			final Closeable source) {
+		FutureTask<ExtractionMetrics> future = new FutureTask<ExtractionMetrics>(task) {
+			private final AtomicBoolean started = new AtomicBoolean();
+
+			@Override
+			public void run() {
+				if (started.compareAndSet(false, true)) {
+					super.run();
+				}
+			}
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				// the copy loops do not check the interrupt flag
+				stop();
+				if (source != null && started.compareAndSet(false, true)) {
+					try {
+						source.close();
+					} catch (IOException e) {
+					}
+				}
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+		executor.execute(future);
+		return future;
+	}
+
+	/**
+	 * Removes the files which an interrupted extraction has recorded in its journal, together with the journal. Files
+	 * of the installed package are kept.
+	 */
+	public void discard() throws IOException {
+		ExtractionJournal journal = new ExtractionJournal(getJournalFile());
+		discard(journal.getNames(), new ExtractionManifest(getManifestFile()).getNames());
+		journal.delete();
+	}
+
+	/**
+	 * @param extracted
+	 *            names of the files the extraction has written
+	 * @param installed
+	 *            names of the files of the installed package
+	 */
+	private void discard(Set<String> extracted, Set<String> installed) {
+		for (String name : extracted) {
+			if (!installed.contains(name)) {
+				new File(baseDir, name).delete();
+			}
+		}
+	}
+
+	private void createBaseDir() throws IOException {
+		if (!baseDir.mkdirs() && !baseDir.isDirectory()) {
+			throw new IOException("Could not create " + baseDir);
+		}
+	}
+
+	private ExtractionMetrics startMetrics() {
+		ExtractionMetrics metrics = new ExtractionMetrics();
+		this.metrics = metrics;
+		control.setMetrics(metrics);
+		return metrics;
+	}
+
+	/**
+	 * @return the progress, which also passes a {@link #stop()} on to the copy loops
+	 */
+	private ExtractionProgress getProgress() {
+		ExtractionProgress progress = this.progress;
+		if (progress == null) {
+			progress = new ExtractionProgress() {
+				@Override
+				protected void onProgress(long done, long total, long bytesPerSecond, long eta, String current) {
+				}
+			};
+		}
+		progress.setControl(control);
+		return progress;
+	}
+
+	private void extractRandomAccess(FileChannel channel, ExtractionJournal journal, ExtractionManifest manifest,
+			DigestManifest digests, PackWriter pack, ExtractionProgress progress)
+			throws IOException, InterruptedException {
+		ZipArchive archive = new ZipArchive(channel);
+		ParallelExtractor extractor = new ParallelExtractor(archive, baseDir, threads);
+		extractor.setBufferPool(bufferPool);
+		extractor.setJournal(journal);
+		extractor.setDigests(digests);
+		extractor.setContentStore(getContentStore());
+		extractor.setOutput(output);
+		extractor.setAllocator(allocator);
+		extractor.setPack(pack);
+		extractor.setMetrics(metrics);
+		if (update) {
+			extractor.setInstalledManifest(manifest);
+		}
+		extractor.setProgress(progress);
+		extractor.setFileListener(fileListener);
+		progress.setTotal(archive.getTotalSize());
+		extractor.extract(new EntryCallback(progress));
+
+		manifest.clear();
+		ZipIndex index = archive.getIndex();
+		for (int i = 0; i < index.size(); i++) {
+			if (!index.isDirectory(i)) {
+				manifest.markCompleted(index.getName(i), index.getSize(i), index.getCrc(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the writer of a new pack or <code>null</code> if every entry is written as file
+	 */
+	private PackWriter openPack() throws IOException {
+		return packThreshold > 0 && output == null ? new PackWriter(getPackFile(), packThreshold) : null;
+	}
+
+	private ContentStore getContentStore() {
+		return output == null ? store : null;
+	}
+
+	/**
+	 * Replaces the previous pack, or removes it if the install is no longer packed. The small files of an install
+	 * which had no pack yet are removed, the pack holds their contents now.
+	 */
+	private void finishPack(PackWriter pack, Set<String> installed) throws IOException {
+		File packFile = getPackFile();
+		if (pack == null) {
+			if (packFile.exists() && !packFile.delete()) {
+				throw new IOException("Could not remove " + packFile);
+			}
+			return;
+		}
+		boolean packed = packFile.exists();
+		pack.commit();
+		if (!packed) {
+			for (String name : pack.getNames()) {
+				if (installed.contains(name)) {
+					new File(baseDir, name).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the mapped central directory or <code>null</code> if it could not be read, the position of the channel
+	 *         is not moved
+	 */
+	private static ZipIndex readIndex(FileChannel channel) {
+		try {
+			return ZipIndex.read(channel);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the digests of the install or <code>null</code> if not verifying, digests left by an earlier verified
+	 *         install are deleted then since they would not be updated
+	 */
+	private DigestManifest openDigests() throws IOException {
+		File file = getDigestFile();
+		if (verify) {
+			return new DigestManifest(file);
+		}
+		file.delete();
+		return null;
+	}
+
+	private void saveDigests(DigestManifest digests, ExtractionManifest manifest) throws IOException {
+		if (digests != null) {
+			// entries skipped by an update keep their digest, those skipped by a resume are hashed from disk
+			digests.complete(baseDir, manifest.getNames());
+			digests.save();
+		}
+	}
+
+	/**
+	 * Shows the name of the current entry with the next progress update.
+	 */
+	private static class EntryCallback implements StreamExtractor.Callback, ParallelExtractor.Callback {
+
+		private final ExtractionProgress progress;
+
+		EntryCallback(ExtractionProgress progress) {
+			this.progress = progress;
+		}
+
+		@Override
+		public void onEntry(ZipEntry entry) {
+			progress.setCurrent(entry.getName());
+		}
+
+		@Override
+		public void onEntryExtracted(ZipArchive.Entry entry) {
+			progress.setCurrent(entry.getName());
+		}
+	}
+}
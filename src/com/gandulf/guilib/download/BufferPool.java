@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of equally sized heap buffers used by the extraction copy loops. Buffers are handed out again after they have
+ * been released, so extracting thousands of entries does not allocate a new buffer for each of them.
+ */
+public class BufferPool {
+
+	public static final int MIN_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_BUFFER_SIZE = MIN_BUFFER_SIZE;
+
+	private static BufferPool defaultPool;
+
+	private final int bufferSize;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+	public static synchronized BufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Changes the buffer size of the pool used by extractions which are not given a pool of their own.
+	 */
+	public static synchronized void setDefaultBufferSize(int bufferSize) {
+		if (defaultPool == null || defaultPool.getBufferSize() != Math.max(MIN_BUFFER_SIZE, bufferSize)) {
+			defaultPool = new BufferPool(bufferSize);
+		}
+	}
+
+	/**
+	 * @param bufferSize
+	 *            size of each buffer in bytes, values below {@link #MIN_BUFFER_SIZE} are raised to it
+	 */
+	public BufferPool(int bufferSize) {
+		this.bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer with an accessible backing array
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == bufferSize) {
+			buffers.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressed store which keeps each distinct file content once. Extracted files are hard links to a blob of
+ * the store, a package containing a file which is already stored gets a new link instead of a new copy. Blobs are
+ * named <code>crc/size-sha256</code>, so the candidates for an entry are found by the crc and size of the central
+ * directory before anything is inflated.
+ * <p>
+ * The store has to be on the same file system as the packages. If hard links can not be created it disables itself
+ * and files are written as usual.
+ * <p>
+ * A blob which has just been found is not linked yet, unused blobs are therefore only pruned when the last extraction
+ * using the store {@link #release() releases} it.
+ */
+class ContentStore {
+
+	/**
+	 * Access to the hard links of the file system, which plain Java does not offer on Android.
+	 */
+	interface Links {
+		/**
+		 * @return <code>false</code> if the link could not be created
+		 */
+		boolean link(File existing, File link);
+
+		/**
+		 * @return the number of hard links of the file or -1 if unknown
+		 */
+		int getLinkCount(File file);
+	}
+
+	/**
+	 * Number of extractions using the store by its root, each job creates its own instance. Guarded by itself.
+	 */
+	private static final Map<File, int[]> users = new HashMap<>();
+
+	private final File root;
+
+	private final Links links;
+
+	private volatile boolean enabled = true;
+
+	ContentStore(File root, Links links) {
+		this.root = root.getAbsoluteFile();
+		this.links = links;
+	}
+
+	/**
+	 * Called before an extraction starts to use the store, waits while the store is being pruned.
+	 */
+	public void acquire() {
+		synchronized (users) {
+			int[] count = users.get(root);
+			if (count == null) {
+				users.put(root, new int[] { 1 });
+			} else {
+				count[0]++;
+			}
+		}
+	}
+
+	/**
+	 * Called once an extraction is done with the store. The last one prunes it, no other extraction can start linking
+	 * blobs meanwhile.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	public int release() {
+		synchronized (users) {
+			int[] count = users.get(root);
+			if (count != null && --count[0] > 0) {
+				return 0;
+			}
+			users.remove(root);
+			return prune();
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return <code>false</code> once creating a link has failed, the file system does not support them
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return stored blobs with the given crc and size, usually none or one
+	 */
+	public List<File> find(long crc, long size) {
+		File[] files = new File(root, Long.toHexString(crc)).listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		String prefix = size + "-";
+		List<File> blobs = new ArrayList<>(1);
+		for (File file : files) {
+			if (file.getName().startsWith(prefix)) {
+				blobs.add(file);
+			}
+		}
+		return blobs;
+	}
+
+	/**
+	 * @return the hex SHA-256 digest of the blob's content
+	 */
+	static String getDigest(File blob) {
+		String name = blob.getName();
+		return name.substring(name.indexOf('-') + 1);
+	}
+
+	/**
+	 * Links the blob to <code>target</code>, an existing target is replaced.
+	 *
+	 * @return <code>false</code> if the link could not be created, the target has to be written then
+	 */
+	public boolean materialize(File blob, File target) {
+		target.delete();
+		return links.link(blob, target);
+	}
+
+	/**
+	 * Adds a freshly written file to the store by linking it as the blob of its content.
+	 */
+	public void add(File file, long crc, long size, String digest) {
+		File blob = new File(new File(root, Long.toHexString(crc)), size + "-" + digest);
+		if (blob.exists()) {
+			return;
+		}
+		File dir = blob.getParentFile();
+		if (!dir.isDirectory()) {
+			dir.mkdirs();
+		}
+		// a concurrent worker may have added the same content in the meantime
+		if (!links.link(file, blob) && !blob.exists()) {
+			enabled = false;
+		}
+	}
+
+	/**
+	 * Deletes the blobs which are not linked from any package anymore.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	private int prune() {
+		int count = 0;
+		File[] dirs = root.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+		for (File dir : dirs) {
+			File[] blobs = dir.listFiles();
+			if (blobs == null) {
+				continue;
+			}
+			for (File blob : blobs) {
+				if (links.getLinkCount(blob) == 1 && blob.delete()) {
+					count++;
+				}
+			}
+			// only removed if it is empty now
+			dir.delete();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 digests of the extracted files in the format of <code>sha256sum</code>: <code>hex digest, two spaces,
+ * name</code> per line. The digests are computed while the files are written, so an install can be verified later
+ * without hashing the files during the extraction a second time.
+ */
+class DigestManifest {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File file;
+
+	private final Map<String, String> digests = new TreeMap<>();
+
+	DigestManifest(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	public synchronized void put(String name, byte[] digest) {
+		digests.put(name, toHex(digest));
+	}
+
+	/**
+	 * @return the hex digest or <code>null</code> if the file is unknown
+	 */
+	public synchronized String get(String name) {
+		return digests.get(name);
+	}
+
+	/**
+	 * Forgets the digests of files whose content has changed since they were recorded.
+	 */
+	public synchronized void removeAll(Collection<String> names) {
+		digests.keySet().removeAll(names);
+	}
+
+	/**
+	 * Drops the digests of files which are no longer part of the install and hashes the files which have been
+	 * extracted without a digest, e.g. by an attempt which did not verify or did not finish.
+	 */
+	public void complete(File baseDir, Collection<String> names) throws IOException {
+		synchronized (this) {
+			digests.keySet().retainAll(names);
+		}
+		for (String name : names) {
+			if (get(name) == null) {
+				put(name, hash(new File(baseDir, name)));
+			}
+		}
+	}
+
+	private static byte[] hash(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] data = new byte[BufferPool.MIN_BUFFER_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(data)) != -1) {
+				digest.update(data, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Writes all digests to a temporary file and renames it over the manifest.
+	 */
+	public synchronized void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ExtractionManifest.UTF8));
+		try {
+			for (Map.Entry<String, String> entry : digests.entrySet()) {
+				writer.write(entry.getValue());
+				writer.write("  ");
+				writer.write(entry.getKey());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write digests " + file);
+		}
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				ExtractionManifest.UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf("  ");
+				if (separator == 64) {
+					digests.put(line.substring(separator + 2), line.substring(0, separator));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
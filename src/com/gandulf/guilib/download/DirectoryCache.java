@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directories of an extraction which are known to exist. A directory costs file system calls only the first time an
+ * entry needs it, the entries written into it later do not touch the file system for it. Thread safe.
+ */
+class DirectoryCache {
+
+	private final Set<File> dirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	private ExtractionMetrics metrics;
+
+	public void setMetrics(ExtractionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Creates the directory tree of the archive before anything is extracted. Parents are created before their
+	 * children, so each new directory takes a single <code>mkdir</code>.
+	 *
+	 * @param pack
+	 *            entries it accepts need no directory, may be <code>null</code>
+	 */
+	public void createAll(File baseDir, ZipIndex index, PackWriter pack) throws IOException {
+		Set<File> tree = new HashSet<>();
+		for (int i = 0; i < index.size(); i++) {
+			if (pack != null && !index.isDirectory(i) && pack.accepts(index.getSize(i))) {
+				continue;
+			}
+			File file = new File(baseDir, index.getName(i));
+			for (File dir = index.isDirectory(i) ? file : file.getParentFile(); dir != null && !dirs.contains(dir)
+					&& tree.add(dir); dir = dir.getParentFile()) {
+				if (dir.equals(baseDir)) {
+					break;
+				}
+			}
+		}
+
+		List<File> sorted = new ArrayList<>(tree);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				return lhs.getPath().length() - rhs.getPath().length();
+			}
+		});
+		create(baseDir);
+		for (File dir : sorted) {
+			create(dir);
+		}
+	}
+
+	/**
+	 * Creates the directory and its missing parents unless it is known to exist.
+	 */
+	public void create(File dir) throws IOException {
+		if (dir == null || dirs.contains(dir)) {
+			return;
+		}
+		long start = System.nanoTime();
+		File parent = dir.getParentFile();
+		boolean created;
+		if (parent == null || dirs.contains(parent)) {
+			created = dir.mkdir() || dir.isDirectory();
+		} else {
+			created = dir.mkdirs() || dir.isDirectory();
+		}
+		if (!created) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		// the parents exist as well now
+		for (File known = dir; known != null && dirs.add(known); known = known.getParentFile()) {
+		}
+		if (metrics != null) {
+			metrics.addMkdirsTime(System.nanoTime() - start);
+		}
+	}
+}
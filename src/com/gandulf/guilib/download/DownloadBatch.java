@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.app.DownloadManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import com.gandulf.guilib.R;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several packages downloaded and extracted as one job, started by {@link Downloader#downloadBatch(List, Listener)}.
+ * Every member is extracted as soon as it has been downloaded. The batch adds up their progress, shows one
+ * notification for all of them instead of one per member and calls its listener once every member has completed.
+ */
+public class DownloadBatch {
+
+	private static final String TAG = "Downloader";
+
+	public interface Listener {
+		/**
+		 * Called on the main thread about twice a second while the batch is running.
+		 */
+		void onBatchProgress(DownloadBatch batch);
+
+		/**
+		 * Called on the main thread once every member has completed.
+		 *
+		 * @param result
+		 *            {@link UnzipIntentService#RESULT_OK} if every member has been installed or was up to date,
+		 *            otherwise {@link UnzipIntentService#RESULT_ERROR} if a member failed or
+		 *            {@link UnzipIntentService#RESULT_CANCELED}
+		 */
+		void onBatchComplete(DownloadBatch batch, int result);
+	}
+
+	private static final long PROGRESS_INTERVAL = 500;
+
+	private static final AtomicInteger nextBatchId = new AtomicInteger();
+
+	private final Context context;
+
+	private final Listener listener;
+
+	private final Member[] members;
+
+	/**
+	 * Queries the progress of all batches off the main thread, a batch whose members are paused costs a periodic task
+	 * instead of a thread.
+	 */
+	private static final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * The periodic poll of this batch, canceled once every member has completed.
+	 */
+	private ScheduledFuture<?> polling;
+
+	private final String tag = "batch:" + nextBatchId.incrementAndGet();
+
+	private final NotificationManagerCompat notificationManager;
+
+	private final NotificationCompat.Builder notificationBuilder;
+
+	private int completed;
+
+	private int result = UnzipIntentService.RESULT_OK;
+
+	private boolean started;
+
+	private volatile long bytesDownloaded;
+
+	private volatile long bytesTotal = -1;
+
+	private volatile long bytesExtracted;
+
+	private volatile long entries;
+
+	/**
+	 * One download of the batch. Its results are reported by the {@link DownloadCoordinator} on the main thread, its
+	 * progress is read by the poller.
+	 */
+	private class Member implements DownloadCoordinator.OnExtractedListener {
+		private volatile long downloadId;
+		private volatile int result;
+
+		private volatile long downloaded;
+		private volatile long total = -1;
+
+		/**
+		 * The live metrics of the running extraction, replaced by the summary of the completion broadcast.
+		 */
+		private volatile ExtractionMetrics metrics;
+		private volatile long extractedBytes = -1;
+		private volatile long extractedEntries = -1;
+
+		@Override
+		public void onExtracted(long downloadId, Bundle metrics) {
+			extractedBytes = metrics.getLong(UnzipIntentService.METRICS_BYTES_OUT);
+			extractedEntries = metrics.getLong(UnzipIntentService.METRICS_ENTRIES);
+		}
+
+		@Override
+		public void onDownloadComplete(long downloadId, int result) {
+			onMemberComplete(this, result);
+		}
+
+		long getExtractedBytes() {
+			ExtractionMetrics current = metrics;
+			return extractedBytes >= 0 ? extractedBytes : current != null ? current.getBytesOut() : 0;
+		}
+
+		long getExtractedEntries() {
+			ExtractionMetrics current = metrics;
+			return extractedEntries >= 0 ? extractedEntries : current != null ? current.getEntries() : 0;
+		}
+	}
+
+	DownloadBatch(Context context, int size, Listener listener) {
+		this.context = context;
+		this.listener = listener;
+		members = new Member[size];
+		for (int i = 0; i < size; i++) {
+			members[i] = new Member();
+		}
+
+		notificationManager = NotificationManagerCompat.from(context);
+		notificationBuilder = new NotificationCompat.Builder(context);
+		notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
+		notificationBuilder.setContentTitle(context.getString(R.string.batch_title));
+		notificationBuilder.setWhen(System.currentTimeMillis());
+		notificationBuilder.setOnlyAlertOnce(true);
+		notificationBuilder.setContentIntent(PendingIntent.getActivity(context, 0, new Intent(), 0));
+	}
+
+	/**
+	 * @return the listener to pass to the {@link DownloadCoordinator} for the member
+	 */
+	Downloader.OnDownloadCompleteListener getListener(int index) {
+		return members[index];
+	}
+
+	void setDownloadId(int index, long downloadId) {
+		members[index].downloadId = downloadId;
+	}
+
+	/**
+	 * Called once every member has been requested.
+	 */
+	synchronized void start() {
+		started = true;
+		if (completed == members.length) {
+			finish();
+		} else {
+			polling = poller.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					poll();
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (listener != null && !isComplete()) {
+								listener.onBatchProgress(DownloadBatch.this);
+							}
+						}
+					});
+				}
+			}, 0, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void onMemberComplete(Member member, int result) {
+		if (member.result != 0) {
+			return;
+		}
+		member.result = result;
+		completed++;
+
+		if (result == UnzipIntentService.RESULT_ERROR || result == UnzipIntentService.RESULT_NO_SPACE) {
+			this.result = UnzipIntentService.RESULT_ERROR;
+		} else if (result == UnzipIntentService.RESULT_CANCELED && this.result == UnzipIntentService.RESULT_OK) {
+			this.result = result;
+		}
+		if (started && completed == members.length) {
+			finish();
+		}
+	}
+
+	/**
+	 * Stops polling after a last update of the totals and reports the result.
+	 */
+	private void finish() {
+		if (polling != null) {
+			polling.cancel(false);
+		}
+		final int result = this.result;
+		poller.execute(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+				notifyResult(result);
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (listener != null) {
+							listener.onBatchComplete(DownloadBatch.this, result);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Reads the bytes of all DownloadManager members with one query and the metrics of the running extractions.
+	 */
+	private void poll() {
+		int count = 0;
+		long[] downloadIds = new long[members.length];
+		for (Member member : members) {
+			if (member.downloadId >= 0) {
+				downloadIds[count++] = member.downloadId;
+			}
+		}
+		if (count > 0) {
+			long[] ids = new long[count];
+			System.arraycopy(downloadIds, 0, ids, 0, count);
+			queryDownloads(ids);
+		}
+
+		long downloaded = 0;
+		long total = 0;
+		long extracted = 0;
+		long extractedEntries = 0;
+		for (Member member : members) {
+			if (member.metrics == null && member.result == 0) {
+				member.metrics = UnzipIntentService.getMetrics(member.downloadId);
+			}
+			downloaded += member.downloaded;
+			// segmented downloads do not report their size
+			total = total >= 0 && member.total >= 0 ? total + member.total : -1;
+			extracted += member.getExtractedBytes();
+			extractedEntries += member.getExtractedEntries();
+		}
+		bytesDownloaded = downloaded;
+		bytesTotal = total;
+		bytesExtracted = extracted;
+		entries = extractedEntries;
+
+		if (!isComplete()) {
+			notifyProgress();
+		}
+	}
+
+	private void queryDownloads(long[] ids) {
+		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		DownloadManager.Query query = new DownloadManager.Query();
+		query.setFilterById(ids);
+		Cursor cursor;
+		try {
+			cursor = downloadManager.query(query);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Could not query the progress of the batch", e);
+			return;
+		}
+		if (cursor == null) {
+			return;
+		}
+		try {
+			int columnId = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+			int columnDownloaded = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+			int columnTotal = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+			while (cursor.moveToNext()) {
+				long downloadId = cursor.getLong(columnId);
+				for (Member member : members) {
+					if (member.downloadId == downloadId) {
+						member.downloaded = cursor.getLong(columnDownloaded);
+						member.total = cursor.getLong(columnTotal);
+					}
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void notifyProgress() {
+		long total = bytesTotal;
+		if (total > 0) {
+			notificationBuilder.setProgress(100, (int) Math.min(100, bytesDownloaded * 100 / total), false);
+		} else {
+			notificationBuilder.setProgress(members.length, getCompleted(), false);
+		}
+		Resources resources = context.getResources();
+		notificationBuilder.setContentText(resources.getQuantityString(R.plurals.batch_progress, members.length,
+				getCompleted(), members.length));
+		long files = entries;
+		notificationBuilder.setSubText(resources.getQuantityString(R.plurals.batch_files, (int) Math.min(files,
+				Integer.MAX_VALUE), files, Formatter.formatShortFileSize(context, bytesExtracted)));
+		notificationManager.notify(tag, UnzipIntentService.UNZIP_ID, notificationBuilder.build());
+	}
+
+	private void notifyResult(int result) {
+		if (result == UnzipIntentService.RESULT_ERROR) {
+			notificationBuilder.setContentTitle(context.getString(R.string.batch_failed));
+			notificationBuilder.setContentText(context.getString(R.string.download_error));
+			notificationBuilder.setSubText(null);
+			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
+			notificationBuilder.setProgress(0, 0, false);
+			notificationManager.notify(tag, UnzipIntentService.UNZIP_ID, notificationBuilder.build());
+		} else {
+			notificationManager.cancel(tag, UnzipIntentService.UNZIP_ID);
+		}
+	}
+
+	public int getSize() {
+		return members.length;
+	}
+
+	/**
+	 * @return number of members which have been installed, were up to date or failed
+	 */
+	public synchronized int getCompleted() {
+		return completed;
+	}
+
+	public synchronized boolean isComplete() {
+		return completed == members.length;
+	}
+
+	/**
+	 * @return the ids of the members in the order of the urls, see
+	 *         {@link Downloader#download(String, boolean, Downloader.OnDownloadCompleteListener)}
+	 */
+	public long[] getDownloadIds() {
+		long[] downloadIds = new long[members.length];
+		for (int i = 0; i < members.length; i++) {
+			downloadIds[i] = members[i].downloadId;
+		}
+		return downloadIds;
+	}
+
+	/**
+	 * @return the result of the member or 0 if it has not completed yet
+	 */
+	public int getResult(int index) {
+		return members[index].result;
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	/**
+	 * @return the size of all archives or -1 if not known yet, segmented downloads never report it
+	 */
+	public long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	/**
+	 * @return uncompressed bytes written by the extractions
+	 */
+	public long getBytesExtracted() {
+		return bytesExtracted;
+	}
+
+	/**
+	 * @return entries written by the extractions
+	 */
+	public long getEntries() {
+		return entries;
+	}
+}
@@ -21,26 +21,121 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 public class DownloadBroadcastReceiver extends BroadcastReceiver {
 
     private static final String TAG="Downloader";
 
 	public static final int UNZIP_ID = 1;
 
-	private String basePath;
+	/**
+	 * Looks up the completed downloads off the main thread, one at a time.
+	 */
+	private static final Executor worker = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Listeners of the {@link DownloadCoordinator} are called on the main thread.
+	 */
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Completed downloads waiting for the worker, all of them are looked up with one query. Guarded by itself.
+	 */
+	private static final Set<Long> completedIds = new LinkedHashSet<>();
+
+	/**
+	 * Broadcasts kept alive by {@link #goAsync()} until the worker has handled their download. Guarded by
+	 * {@link #completedIds}.
+	 */
+	private static final List<PendingResult> pendingResults = new ArrayList<>();
 
     public DownloadBroadcastReceiver() {
 
     }
-	public DownloadBroadcastReceiver(String basePath) {
-		this.basePath = basePath;
+
+	/**
+	 * Compares the pending downloads with the DownloadManager, e.g. after the process has been restarted. Downloads
+	 * which completed while nobody was listening are extracted now, failed or removed downloads are dropped.
+	 */
+	public static void reconcile(Context context) {
+		PendingUnzipRegistry registry = PendingUnzipRegistry.getInstance(context);
+		if (registry.isEmpty()) {
+			return;
+		}
+
+		long[] downloadIds = registry.getDownloadIds();
+		Set<Long> known = new HashSet<>();
+
+		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		DownloadManager.Query query = new DownloadManager.Query();
+		query.setFilterById(downloadIds);
+		Cursor cursor = downloadManager.query(query);
+		if (cursor != null) {
+			int columnId = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+			int columnStatus = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+			while (cursor.moveToNext()) {
+				long downloadId = cursor.getLong(columnId);
+				known.add(downloadId);
+
+				int status = cursor.getInt(columnStatus);
+				if (status == DownloadManager.STATUS_SUCCESSFUL) {
+					Log.d(TAG, "Found completed download " + downloadId);
+					startUnzip(context, registry, downloadId);
+				} else if (status == DownloadManager.STATUS_FAILED) {
+					Log.d(TAG, "Dropping failed download " + downloadId);
+					registry.remove(downloadId);
+				}
+			}
+			cursor.close();
+
+			for (long downloadId : downloadIds) {
+				if (!known.contains(downloadId)) {
+					Log.d(TAG, "Dropping unknown download " + downloadId);
+					registry.remove(downloadId);
+				}
+			}
+		}
 	}
 
-	private void notify(Context context, String message) {
+	/**
+	 * Runs {@link #reconcile(Context)} on the worker, the DownloadManager query must not block the main thread.
+	 */
+	static void reconcileAsync(Context context) {
+		final Context appContext = context.getApplicationContext();
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				reconcile(appContext);
+			}
+		});
+	}
+
+	private static void startUnzip(Context context, PendingUnzipRegistry registry, long downloadId) {
+		// only the receiver which claims the entry starts the extraction
+		PendingUnzipRegistry.Entry entry = registry.claim(downloadId);
+		if (entry != null) {
+			Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, downloadId);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, entry.getBasePath());
+			entry.getOptions().putExtras(serviceIntent);
+			context.startService(serviceIntent);
+		}
+	}
+
+	private static void notify(Context context, String message) {
 
 		NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
 
@@ -65,45 +160,132 @@ public class DownloadBroadcastReceiver extends BroadcastReceiver {
 
 			long downloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
 
-			if (downloadId >= 0 && Downloader.todoUnzip.contains(downloadId)) {
+			PendingUnzipRegistry registry = PendingUnzipRegistry.getInstance(context);
 
-				DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+			// waits for a download() which is still registering this download
+			boolean requested = DownloadCoordinator.isRequested(downloadId);
+			// downloads of other components are ignored without touching the DownloadManager
+			if (downloadId >= 0 && (registry.contains(downloadId) || requested)) {
 
 				Log.d(TAG, "Received download completed " + downloadId);
 
-				DownloadManager.Query query = new DownloadManager.Query();
-				query.setFilterById(downloadId);
-				Cursor cursor = downloadManager.query(query);
-
-				if (cursor != null) {
-					if (cursor.moveToFirst()) {
-						int columnIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-						int status = cursor.getInt(columnIndex);
-						int columnReason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
-						int reason = cursor.getInt(columnReason);
-
-						if (status == DownloadManager.STATUS_SUCCESSFUL) {
-							Intent serviceIntent = new Intent(context, UnzipIntentService.class);
-							serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, downloadId);
-							serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, basePath);
-							context.startService(serviceIntent);
-							Downloader.todoUnzip.remove(downloadId);
-						} else if (status == DownloadManager.STATUS_FAILED) {
-							notify(context, "Fehler:\n" + reason);
-						} else if (status == DownloadManager.STATUS_PAUSED) {
-							notify(context, "Pausiert:\n" + reason);
-						} else if (status == DownloadManager.STATUS_PENDING) {
-							notify(context, "Pending!");
-						} else if (status == DownloadManager.STATUS_RUNNING) {
-							notify(context, "Läuft!");
-						}
+				final Context appContext = context.getApplicationContext();
+				synchronized (completedIds) {
+					completedIds.add(downloadId);
+					pendingResults.add(goAsync());
+				}
+				worker.execute(new Runnable() {
+					@Override
+					public void run() {
+						handleCompleted(appContext);
 					}
+				});
+			}
+		} else if (UnzipIntentService.ACTION_UNZIP_COMPLETE.equals(action)) {
+			long downloadId = intent.getLongExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, -1);
+			int result = intent.getIntExtra(UnzipIntentService.INTENT_RESULT, UnzipIntentService.RESULT_ERROR);
+			// a paused download completes once it has been resumed
+			if (downloadId != -1 && result != UnzipIntentService.RESULT_PAUSED) {
+				DownloadCoordinator.onDownloadComplete(downloadId, result,
+						intent.getBundleExtra(UnzipIntentService.INTENT_METRICS));
+			}
+		}
+	}
 
-					cursor.close();
+	/**
+	 * Runs on the worker. Downloads which completed together are looked up with one query, a later run finds nothing
+	 * left to do.
+	 */
+	private static void handleCompleted(Context context) {
+		long[] downloadIds;
+		List<PendingResult> results;
+		synchronized (completedIds) {
+			if (completedIds.isEmpty()) {
+				return;
+			}
+			downloadIds = new long[completedIds.size()];
+			int i = 0;
+			for (long downloadId : completedIds) {
+				downloadIds[i++] = downloadId;
+			}
+			completedIds.clear();
+			results = new ArrayList<>(pendingResults);
+			pendingResults.clear();
+		}
+
+		try {
+			PendingUnzipRegistry registry = PendingUnzipRegistry.getInstance(context);
+			DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+			DownloadManager.Query query = new DownloadManager.Query();
+			query.setFilterById(downloadIds);
+			Cursor cursor = downloadManager.query(query);
+			if (cursor == null) {
+				return;
+			}
+
+			Set<Long> known = new HashSet<>();
+			try {
+				int columnId = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+				int columnStatus = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+				int columnReason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+				while (cursor.moveToNext()) {
+					long downloadId = cursor.getLong(columnId);
+					known.add(downloadId);
+					handleStatus(context, registry, downloadId, cursor.getInt(columnStatus),
+							cursor.getInt(columnReason));
 				}
+			} finally {
+				cursor.close();
+			}
 
+			for (long downloadId : downloadIds) {
+				if (!known.contains(downloadId)) {
+					// removed from the DownloadManager before it completed
+					registry.remove(downloadId);
+					postComplete(downloadId, UnzipIntentService.RESULT_CANCELED);
+				}
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Could not handle completed downloads", e);
+		} finally {
+			for (PendingResult result : results) {
+				result.finish();
+			}
+		}
+	}
+
+	private static void handleStatus(Context context, PendingUnzipRegistry registry, final long downloadId,
+			int status, int reason) {
+		if (status == DownloadManager.STATUS_SUCCESSFUL) {
+			if (registry.contains(downloadId)) {
+				startUnzip(context, registry, downloadId);
 			}
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					DownloadCoordinator.onDownloaded(downloadId);
+				}
+			});
+		} else if (status == DownloadManager.STATUS_FAILED) {
+			registry.remove(downloadId);
+			notify(context, "Fehler:\n" + reason);
+			postComplete(downloadId, UnzipIntentService.RESULT_ERROR);
+		} else if (status == DownloadManager.STATUS_PAUSED) {
+			notify(context, "Pausiert:\n" + reason);
+		} else if (status == DownloadManager.STATUS_PENDING) {
+			notify(context, "Pending!");
+		} else if (status == DownloadManager.STATUS_RUNNING) {
+			notify(context, "Läuft!");
 		}
 	}
 
+	private static void postComplete(final long downloadId, final int result) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				DownloadCoordinator.onDownloadComplete(downloadId, result);
+			}
+		});
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * {@link DownloadValidators} of the installed packages by url, kept in a private preferences file.
+ */
+class DownloadCache {
+
+	private static final String PREFERENCES = "com.gandulf.guilib.download.cache";
+
+	private static DownloadCache instance;
+
+	private final SharedPreferences preferences;
+
+	static synchronized DownloadCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new DownloadCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private DownloadCache(Context context) {
+		preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return the validators of the package installed from <code>url</code> into <code>baseDir</code> or
+	 *         <code>null</code> if it is unknown or its files are gone
+	 */
+	DownloadValidators get(String url, File baseDir) {
+		if (!UnzipIntentService.getManifestFile(baseDir, url).exists()
+				&& !UnzipIntentService.getArchiveFile(baseDir, url).exists()) {
+			return null;
+		}
+		return DownloadValidators.decode(preferences.getString(key(url, baseDir), null));
+	}
+
+	void put(String url, File baseDir, DownloadValidators validators) {
+		preferences.edit().putString(key(url, baseDir), validators.encode()).apply();
+	}
+
+	void remove(String url, File baseDir) {
+		preferences.edit().remove(key(url, baseDir)).apply();
+	}
+
+	private static String key(String url, File baseDir) {
+		return baseDir.getAbsolutePath() + '\n' + url;
+	}
+}
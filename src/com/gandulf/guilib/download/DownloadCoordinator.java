@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide state shared by all {@link Downloader} instances. It merges requests for the same url into one
+ * DownloadManager download, every caller is told when it completes. Completed downloads arrive at the
+ * {@link DownloadBroadcastReceiver} declared in the manifest, completed extractions at the one registered here.
+ */
+class DownloadCoordinator {
+
+	private static final String TAG = "Downloader";
+
+	private static DownloadCoordinator instance;
+
+	/**
+	 * Listener which is also given the summary of the extraction, e.g. to add it up over a {@link DownloadBatch}.
+	 */
+	interface OnExtractedListener extends Downloader.OnDownloadCompleteListener {
+		/**
+		 * Called right before {@link #onDownloadComplete(long, int)} if the job got as far as extracting.
+		 *
+		 * @param metrics
+		 *            see {@link UnzipIntentService#INTENT_METRICS}
+		 */
+		void onExtracted(long downloadId, Bundle metrics);
+	}
+
+	private static class Request {
+		private final String key;
+		private final boolean unzip;
+		/**
+		 * <code>null</code> if the download is not extracted.
+		 */
+		private final UnzipOptions options;
+		private final List<Downloader.OnDownloadCompleteListener> listeners = new ArrayList<>();
+
+		Request(String key, PendingUnzipRegistry.Entry unzip) {
+			this.key = key;
+			this.unzip = unzip != null;
+			this.options = unzip != null ? unzip.getOptions() : null;
+		}
+	}
+
+	private static final String PREFERENCES = "com.gandulf.guilib.download.coordinator";
+
+	private static final String KEY_NEXT_SEGMENTED_ID = "nextSegmentedId";
+
+	private final Context context;
+
+	private final DownloadManager downloadManager;
+
+	private final PendingUnzipRegistry registry;
+
+	private final SharedPreferences preferences;
+
+	/**
+	 * Running downloads by url and output directory.
+	 */
+	private final Map<String, Long> downloadIds = new HashMap<>();
+
+	private final Map<Long, Request> requests = new HashMap<>();
+
+
+	static synchronized DownloadCoordinator getInstance(Context context) {
+		if (instance == null) {
+			instance = new DownloadCoordinator(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private static synchronized DownloadCoordinator peekInstance() {
+		return instance;
+	}
+
+	private DownloadCoordinator(Context context) {
+		this.context = context;
+		downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		registry = PendingUnzipRegistry.getInstance(context);
+		preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+
+		// the manifest receiver already gets ACTION_DOWNLOAD_COMPLETE, a second one would handle every download twice
+		context.registerReceiver(new DownloadBroadcastReceiver(),
+				new IntentFilter(UnzipIntentService.ACTION_UNZIP_COMPLETE));
+
+		// pick up downloads which finished while the process was not running
+		DownloadBroadcastReceiver.reconcileAsync(context);
+	}
+
+	/**
+	 * Enqueues the download unless the same url is already being downloaded into the same directory, in that case the
+	 * listener is added to the running download.
+	 *
+	 * @param unzip
+	 *            extraction options or <code>null</code> if the archive should only be downloaded
+	 * @param listener
+	 *            may be <code>null</code>, it is held until the download has completed
+	 * @return the id of the DownloadManager download
+	 * @throws IllegalStateException
+	 *             if the running download installs the archive with other options
+	 */
+	synchronized long download(String path, PendingUnzipRegistry.Entry unzip,
+			Downloader.OnDownloadCompleteListener listener) {
+		String key = unzip != null ? path + '\n' + unzip.getBasePath() : path;
+
+		Long downloadId = downloadIds.get(key);
+		if (downloadId == null) {
+			downloadId = downloadManager.enqueue(new DownloadManager.Request(Uri.parse(path)));
+			// registered before the receiver can look for it, it waits for this lock
+			if (unzip != null) {
+				registry.add(downloadId, unzip);
+			}
+			downloadIds.put(key, downloadId);
+			requests.put(downloadId, new Request(key, unzip));
+		} else {
+			checkOptions(downloadId, path, unzip);
+			Log.d(TAG, "Joining running download " + downloadId + " of " + path);
+		}
+
+		if (listener != null) {
+			requests.get(downloadId).listeners.add(listener);
+		}
+		return downloadId;
+	}
+
+	/**
+	 * Like {@link #download(String, PendingUnzipRegistry.Entry, Downloader.OnDownloadCompleteListener)} but the
+	 * archive is fetched by the {@link UnzipIntentService} over several connections instead of by the DownloadManager.
+	 *
+	 * @return a negative id which identifies the download in the listener callback
+	 */
+	synchronized long downloadSegmented(String path, PendingUnzipRegistry.Entry unzip, int connections,
+			Downloader.OnDownloadCompleteListener listener) {
+		String key = path + '\n' + unzip.getBasePath();
+
+		Long downloadId = downloadIds.get(key);
+		if (downloadId == null) {
+			downloadId = nextSegmentedId();
+			downloadIds.put(key, downloadId);
+			requests.put(downloadId, new Request(key, unzip));
+
+			Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_URL, path);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, downloadId.longValue());
+			serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, unzip.getBasePath());
+			unzip.getOptions().putExtras(serviceIntent);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_CONNECTIONS, connections);
+			context.startService(serviceIntent);
+		} else {
+			checkOptions(downloadId, path, unzip);
+			Log.d(TAG, "Joining running download " + downloadId + " of " + path);
+		}
+
+		if (listener != null) {
+			requests.get(downloadId).listeners.add(listener);
+		}
+		return downloadId;
+	}
+
+	/**
+	 * A caller joining a running download gets the install of the first caller, it must not ask for another one.
+	 *
+	 * @throws IllegalStateException
+	 *             if the options of the running download install the archive differently
+	 */
+	private void checkOptions(long downloadId, String path, PendingUnzipRegistry.Entry unzip) {
+		UnzipOptions running = requests.get(downloadId).options;
+		if (unzip != null && running != null && !running.isSameInstall(unzip.getOptions())) {
+			throw new IllegalStateException(path + " is already being downloaded with other unzip options");
+		}
+	}
+
+	/**
+	 * Ids of segmented downloads are negative so they never collide with the ids of the DownloadManager, they are
+	 * counted across restarts of the process so they never collide with the ids of jobs from before.
+	 */
+	private long nextSegmentedId() {
+		long downloadId = preferences.getLong(KEY_NEXT_SEGMENTED_ID, -2);
+		preferences.edit().putLong(KEY_NEXT_SEGMENTED_ID, downloadId - 1).apply();
+		return downloadId;
+	}
+
+	private synchronized boolean contains(long downloadId) {
+		return requests.containsKey(downloadId);
+	}
+
+	/**
+	 * @return <code>true</code> if the download has been started by a {@link Downloader} of this process and has not
+	 *         completed yet
+	 */
+	static boolean isRequested(long downloadId) {
+		DownloadCoordinator coordinator = peekInstance();
+		return coordinator != null && coordinator.contains(downloadId);
+	}
+
+	/**
+	 * The DownloadManager has stored the file. Callers of downloads which are extracted are notified by
+	 * {@link #onDownloadComplete(long, int)} once the extraction has completed.
+	 */
+	static void onDownloaded(long downloadId) {
+		DownloadCoordinator coordinator = peekInstance();
+		if (coordinator == null) {
+			return;
+		}
+		synchronized (coordinator) {
+			Request request = coordinator.requests.get(downloadId);
+			if (request == null || request.unzip) {
+				return;
+			}
+		}
+		onDownloadComplete(downloadId, UnzipIntentService.RESULT_OK);
+	}
+
+	/**
+	 * Tells every caller which requested the download about its result, after the extraction if it had to be
+	 * extracted.
+	 *
+	 * @param result
+	 *            one of the <code>UnzipIntentService.RESULT_*</code> codes
+	 */
+	static void onDownloadComplete(long downloadId, int result) {
+		onDownloadComplete(downloadId, result, null);
+	}
+
+	/**
+	 * @param metrics
+	 *            summary of the extraction or <code>null</code>, see {@link UnzipIntentService#INTENT_METRICS}
+	 */
+	static void onDownloadComplete(long downloadId, int result, Bundle metrics) {
+		DownloadCoordinator coordinator = peekInstance();
+		if (coordinator == null) {
+			return;
+		}
+
+		Request request;
+		synchronized (coordinator) {
+			request = coordinator.requests.remove(downloadId);
+			if (request == null) {
+				return;
+			}
+			coordinator.downloadIds.remove(request.key);
+		}
+
+		for (Downloader.OnDownloadCompleteListener listener : request.listeners) {
+			if (metrics != null && listener instanceof OnExtractedListener) {
+				((OnExtractedListener) listener).onExtracted(downloadId, metrics);
+			}
+			listener.onDownloadComplete(downloadId, result);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Stream of a remote file which is fetched by a separate thread into a bounded pipe. The consumer (the extraction)
+ * and the network transfer run concurrently, a slow network does not stall the inflater and a slow disk does not stall
+ * the connection until the pipe is full.
+ */
+class DownloadPipe extends InputStream {
+
+	private static final int PIPE_SIZE = 256 * 1024;
+	private static final int BUFFER = 16 * 1024;
+	private static final int TIMEOUT = 30 * 1000;
+
+	private final HttpURLConnection connection;
+	private final PipedInputStream pipe;
+	private final Thread thread;
+
+	private final long contentLength;
+
+	private volatile long bytesReceived;
+	private volatile IOException error;
+	private volatile boolean closed;
+
+	DownloadPipe(URL url) throws IOException {
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+
+		int code = connection.getResponseCode();
+		if (code != HttpURLConnection.HTTP_OK) {
+			connection.disconnect();
+			throw new IOException("Download of " + url + " failed: " + code + " " + connection.getResponseMessage());
+		}
+		contentLength = connection.getContentLength();
+
+		final InputStream in = connection.getInputStream();
+		final PipedOutputStream out = new PipedOutputStream();
+		pipe = new PipedInputStream(out, PIPE_SIZE);
+
+		thread = new Thread("DownloadPipe") {
+			@Override
+			public void run() {
+				try {
+					byte[] data = new byte[BUFFER];
+					int count;
+					while ((count = in.read(data, 0, BUFFER)) != -1) {
+						out.write(data, 0, count);
+						bytesReceived += count;
+					}
+					if (contentLength >= 0 && bytesReceived < contentLength) {
+						error = new EOFException("Connection closed after " + bytesReceived + " of " + contentLength
+								+ " bytes");
+					}
+				} catch (IOException e) {
+					// a closed pipe means the consumer is done, everything else is a failed download
+					if (!closed) {
+						error = e;
+					}
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.start();
+	}
+
+	/**
+	 * @return the length announced by the server or -1 if unknown
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = pipe.read();
+		if (b == -1) {
+			checkError();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = pipe.read(b, off, len);
+		if (count == -1) {
+			checkError();
+		}
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return pipe.available();
+	}
+
+	/**
+	 * Throws the error of the download thread, if the transfer failed.
+	 */
+	public void checkError() throws IOException {
+		IOException e = error;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// unblocks the download thread if it waits for free space in the pipe
+		pipe.close();
+		connection.disconnect();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
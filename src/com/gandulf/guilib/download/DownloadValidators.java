@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Cache validators of a remote package as sent by the server: ETag, Last-Modified and the content length. They are
+ * stored after a package has been installed and sent with the next request, so a server answering 304 Not Modified
+ * spares the download and the extraction.
+ */
+class DownloadValidators {
+
+	private static final int TIMEOUT = 30 * 1000;
+
+	private static final char SEPARATOR = '\t';
+
+	private final String etag;
+	private final String lastModified;
+	private final long contentLength;
+
+	private final boolean notModified;
+
+	DownloadValidators(String etag, String lastModified, long contentLength) {
+		this(etag, lastModified, contentLength, false);
+	}
+
+	private DownloadValidators(String etag, String lastModified, long contentLength, boolean notModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.contentLength = contentLength;
+		this.notModified = notModified;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the size of the package in bytes or -1 if unknown
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return <code>true</code> if the server has confirmed that the package has not changed since the validators it
+	 *         has been requested with
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	/**
+	 * Servers which ignore conditional HEAD requests still identify an unchanged package by a strong ETag, or by the
+	 * same modification date and size if there is no ETag.
+	 */
+	boolean isSameVersion(DownloadValidators other) {
+		if (other == null) {
+			return false;
+		}
+		if (etag != null || other.etag != null) {
+			return etag != null && etag.equals(other.etag) && !etag.startsWith("W/");
+		}
+		return lastModified != null && lastModified.equals(other.lastModified) && contentLength >= 0
+				&& contentLength == other.contentLength;
+	}
+
+	/**
+	 * Sends a HEAD request for <code>url</code>, conditional on the given validators.
+	 *
+	 * @param cached
+	 *            validators of the installed package or <code>null</code> if there is none
+	 * @return the validators of the current version, {@link #isNotModified()} tells whether it is still the cached one
+	 */
+	static DownloadValidators request(URL url, DownloadValidators cached) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setRequestMethod("HEAD");
+			connection.setUseCaches(false);
+			if (cached != null) {
+				if (cached.etag != null) {
+					connection.setRequestProperty("If-None-Match", cached.etag);
+				}
+				if (cached.lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+				}
+			}
+
+			int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				return new DownloadValidators(cached.etag, cached.lastModified, cached.contentLength, true);
+			} else if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Request of " + url + " failed: " + code + " " + connection.getResponseMessage());
+			}
+
+			String length = connection.getHeaderField("Content-Length");
+			DownloadValidators current = new DownloadValidators(connection.getHeaderField("ETag"),
+					connection.getHeaderField("Last-Modified"), length != null ? parseLength(length) : -1);
+			if (current.isSameVersion(cached)) {
+				return new DownloadValidators(current.etag, current.lastModified, current.contentLength, true);
+			}
+			return current;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static long parseLength(String length) {
+		try {
+			return Long.parseLong(length.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	String encode() {
+		return (etag != null ? etag : "") + SEPARATOR + (lastModified != null ? lastModified : "") + SEPARATOR
+				+ contentLength;
+	}
+
+	/**
+	 * @return the validators or <code>null</code> if the value is not valid
+	 */
+	static DownloadValidators decode(String value) {
+		if (value == null) {
+			return null;
+		}
+		int first = value.indexOf(SEPARATOR);
+		int second = first >= 0 ? value.indexOf(SEPARATOR, first + 1) : -1;
+		if (second < 0) {
+			return null;
+		}
+		String etag = value.substring(0, first);
+		String lastModified = value.substring(first + 1, second);
+		try {
+			return new DownloadValidators(etag.length() > 0 ? etag : null,
+					lastModified.length() > 0 ? lastModified : null, Long.parseLong(value.substring(second + 1)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
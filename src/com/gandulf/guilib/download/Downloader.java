@@ -15,24 +15,63 @@
  */
 package com.gandulf.guilib.download;
 
-import android.app.DownloadManager;
-import android.app.DownloadManager.Request;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.IntentFilter;
-import android.net.Uri;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.net.URL;
 import java.util.List;
 
+/**
+ * Downloads archives into a base directory and extracts them there. Instances only hold the options of their caller,
+ * the downloads themselves are coordinated process wide: one receiver listens for all of them and requests for the
+ * same url are merged into one download.
+ */
 public class Downloader {
 
-	public static List<Long> todoUnzip = new LinkedList<>();
+    private static final String TAG = "Downloader";
+
+	/**
+	 * Called on the main thread once a download and, if requested, its extraction have completed.
+	 */
+	public interface OnDownloadCompleteListener {
+		/**
+		 * @param result
+		 *            one of the <code>UnzipIntentService.RESULT_*</code> codes
+		 */
+		void onDownloadComplete(long downloadId, int result);
+	}
+
+	/**
+	 * How archives are fetched.
+	 */
+	public enum Engine {
+		/**
+		 * The platform DownloadManager, one connection per file. Downloads continue while the app is not running.
+		 */
+		DOWNLOAD_MANAGER,
+		/**
+		 * Byte ranges fetched over several connections by the {@link UnzipIntentService}, see
+		 * {@link #setConnections(int)}. Interrupted downloads are continued by the next request of the same url.
+		 */
+		SEGMENTED
+	}
+
+	private DownloadCoordinator coordinator;
+
+	private Context context;
 
-	private DownloadManager downloadManager;
+	private String basePath;
 
-	private BroadcastReceiver receiver;
+	private final UnzipOptions.Builder options = new UnzipOptions.Builder();
+
+	private Engine engine = Engine.DOWNLOAD_MANAGER;
+
+	private int connections = SegmentedDownload.DEFAULT_CONNECTIONS;
 
     public static Downloader getInstance(File baseDir, Context context) {
         return new Downloader(baseDir.getAbsolutePath(), context);
@@ -40,24 +79,207 @@ public class Downloader {
 
     Downloader(final String basePath, Context context) {
 
-        downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        this.context = context.getApplicationContext();
+        this.basePath = basePath;
+
+        coordinator = DownloadCoordinator.getInstance(context);
+    }
+
+    /**
+     * Extract downloaded archives on a worker pool instead of streaming them sequentially.
+     */
+    public void setParallelUnzip(boolean parallel) {
+        options.setParallel(parallel);
+    }
 
-        receiver = new DownloadBroadcastReceiver(basePath);
+    /**
+     * Treat downloaded archives as updates of an existing install: unchanged files are not written again and files
+     * missing from the new archive are removed.
+     */
+    public void setUpdateUnzip(boolean update) {
+        options.setUpdate(update);
+    }
+
+    /**
+     * Check the crc of every extracted file and record its SHA-256 digest next to the output. Both are computed while
+     * the files are written, a mismatch fails the extraction with {@link UnzipIntentService#RESULT_ERROR}.
+     */
+    public void setVerifyUnzip(boolean verify) {
+        options.setVerify(verify);
+    }
+
+    /**
+     * Store each distinct file content once: extracted files are hard links into a content addressed store in the
+     * base directory, files another package already installed are linked instead of written. Requires Android 5.0 and
+     * a file system with hard links, otherwise files are written as usual. Not used by streaming downloads.
+     */
+    public void setDedupUnzip(boolean dedup) {
+        options.setDedup(dedup);
+    }
+
+    /**
+     * Do not extract downloaded archives: the archive is kept in the base directory and its files are extracted on
+     * demand into a size bounded cache, open them with {@link PackageArchive#open(File, String)}. The parallel,
+     * update, verify and dedup options do not apply to lazy installs.
+     */
+    public void setLazyUnzip(boolean lazy) {
+        options.setLazy(lazy);
+    }
+
+    /**
+     * Pack small files: their contents are concatenated into one file next to the manifest instead of being written
+     * one by one, which saves the inodes and the metadata updates of archives with many tiny files. Read them with
+     * {@link PackFile#open(File, String)}, larger files are written as usual.
+     */
+    public void setPackUnzip(boolean pack) {
+        options.setPack(pack);
+    }
+
+    /**
+     * Priority of the extraction of archives downloaded from now on, archives with a higher priority are extracted
+     * first when several are waiting. Defaults to 0.
+     */
+    public void setUnzipPriority(int priority) {
+        options.setPriority(priority);
+    }
+
+    /**
+     * Starts the download, if the same url is already being downloaded into the same directory no second download is
+     * started and the listener is notified when the running one completes.
+     *
+     * @param listener
+     *            may be <code>null</code>, it is held until the download has completed
+     * @return the id of the DownloadManager download, downloads of the {@link Engine#SEGMENTED} engine have negative
+     *         ids
+     * @throws IllegalStateException
+     *             if the running download of the url into the same directory has other parallel, update, verify,
+     *             dedup, lazy or pack options
+     */
+    public long download(String path, boolean unzip, OnDownloadCompleteListener listener) {
+        PendingUnzipRegistry.Entry entry = unzip ? new PendingUnzipRegistry.Entry(basePath, options.build()) : null;
+        if (unzip && engine == Engine.SEGMENTED) {
+            return coordinator.downloadSegmented(path, entry, connections, listener);
+        }
+        return coordinator.download(path, entry, listener);
+    }
+
+    /**
+     * Downloads and extracts the packages as one job with the options of this instance. Every archive is extracted as
+     * soon as it has been downloaded, the batch reports the progress of all of them in one notification and calls
+     * the listener once all of them have completed.
+     *
+     * @param listener
+     *            may be <code>null</code>, called on the main thread
+     */
+    public DownloadBatch downloadBatch(List<String> paths, DownloadBatch.Listener listener) {
+        DownloadBatch batch = new DownloadBatch(context, paths.size(), listener);
+        // the members do not notify on their own, the batch shows them together
+        PendingUnzipRegistry.Entry entry = new PendingUnzipRegistry.Entry(basePath,
+                new UnzipOptions.Builder(options.build()).setSilent(true).build());
+        for (int i = 0; i < paths.size(); i++) {
+            long downloadId;
+            if (engine == Engine.SEGMENTED) {
+                downloadId = coordinator.downloadSegmented(paths.get(i), entry, connections, batch.getListener(i));
+            } else {
+                downloadId = coordinator.download(paths.get(i), entry, batch.getListener(i));
+            }
+            batch.setDownloadId(i, downloadId);
+        }
+        batch.start();
+        return batch;
+    }
+
+    /**
+     * Selects the engine used for downloads which are extracted, plain downloads always use the DownloadManager.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Number of parallel connections of the {@link Engine#SEGMENTED} engine.
+     */
+    public void setConnections(int connections) {
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Downloads and extracts the package unless the installed one is still up to date. A conditional request with the
+     * validators stored after the last install is sent first, if the server confirms that nothing has changed the
+     * listener is called with {@link UnzipIntentService#RESULT_UNCHANGED} and a download id of -1. If the server can
+     * not be asked the package is downloaded.
+     *
+     * @param listener
+     *            may be <code>null</code>, called on the main thread
+     */
+    public void downloadIfModified(final String path, final OnDownloadCompleteListener listener) {
+        final File baseDir = new File(basePath);
+        final DownloadCache cache = DownloadCache.getInstance(context);
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        new Thread("DownloadCheck") {
+            @Override
+            public void run() {
+                DownloadValidators validators = null;
+                try {
+                    validators = DownloadValidators.request(new URL(path), cache.get(path, baseDir));
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not check " + path + " for changes", e);
+                }
+
+                final DownloadValidators current = validators;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current != null && current.isNotModified()) {
+                            Log.d(TAG, "Package " + path + " is up to date");
+                            if (listener != null) {
+                                listener.onDownloadComplete(-1, UnzipIntentService.RESULT_UNCHANGED);
+                            }
+                            return;
+                        }
+
+                        // the validators are only valid for the new version once it has been installed
+                        cache.remove(path, baseDir);
+                        download(path, true, new OnDownloadCompleteListener() {
+                            @Override
+                            public void onDownloadComplete(long downloadId, int result) {
+                                boolean installed = result == UnzipIntentService.RESULT_OK
+                                        || result == UnzipIntentService.RESULT_LAZY;
+                                if (installed && current != null) {
+                                    cache.put(path, baseDir, current);
+                                }
+                                if (listener != null) {
+                                    listener.onDownloadComplete(downloadId, result);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }.start();
+    }
 
-        context.getApplicationContext().registerReceiver(receiver,
-                new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+    public long download(String path,boolean unzip) {
+        return download(path, unzip, null);
     }
 
-    public void download(String path,boolean unzip) {
-        Request request = new Request(Uri.parse(path));
-        if (unzip)
-            todoUnzip.add(downloadManager.enqueue(request));
-        else
-            downloadManager.enqueue(request);
+    public long download(String path) {
+        return download(path,true);
     }
 
-    public void download(String path) {
-        download(path,true);
+    /**
+     * Downloads and extracts the archive in one pass, entries are inflated as soon as their bytes arrive. The archive
+     * is not stored and the DownloadManager is not involved, completion is reported with
+     * {@link UnzipIntentService#ACTION_UNZIP_COMPLETE}.
+     */
+    public void downloadStreaming(String path) {
+        Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+        serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_URL, path);
+        serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, basePath);
+        // a stream is extracted as it arrives, there is no archive to keep
+        new UnzipOptions.Builder(options.build()).setLazy(false).build().putExtras(serviceIntent);
+        context.startService(serviceIntent);
     }
 
 }
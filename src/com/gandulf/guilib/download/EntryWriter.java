@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Copy loop for a single extracting thread. It owns an {@link Inflater} and two pooled buffers which are reused for
+ * every entry, output is written in full buffers straight to the {@link FileChannel} of the target file. Not thread
+ * safe, use one instance per thread and {@link #close()} it to hand the buffers back to the pool.
+ */
+class EntryWriter {
+
+	/**
+	 * Reserves the blocks of a file before it is written, which plain Java does not offer on Android.
+	 */
+	interface Allocator {
+		/**
+		 * Extends the file to <code>length</code> bytes backed by allocated blocks.
+		 *
+		 * @return <code>false</code> if the blocks could not be allocated
+		 */
+		boolean allocate(FileDescriptor fd, long length);
+	}
+
+	/**
+	 * Smaller files fit into a few output buffers, the file system places them in one piece anyway.
+	 */
+	private static final long MIN_ALLOCATION = 256 * 1024;
+
+	/**
+	 * Collects a packed entry until it is written at once.
+	 */
+	private static class MemoryOutput extends ByteArrayOutputStream {
+		final WritableByteChannel channel = Channels.newChannel(this);
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private final BufferPool pool;
+
+	private final ByteBuffer input;
+	private final ByteBuffer output;
+
+	private final Inflater inflater = new Inflater(true);
+
+	private final ExtractionProgress progress;
+
+	private ExtractionMetrics metrics;
+
+	private Allocator allocator;
+
+	/**
+	 * Grown to the largest packed entry, created by the first one.
+	 */
+	private MemoryOutput memory;
+
+	/**
+	 * Only set while verifying.
+	 */
+	private MessageDigest digest;
+	/**
+	 * Always computed, the crc of archive entries is checked whether verifying or not.
+	 */
+	private final CRC32 crc = new CRC32();
+	private byte[] lastDigest;
+
+	private boolean sync;
+
+	private ExtractionOutput fileOutput;
+
+	EntryWriter(BufferPool pool, ExtractionProgress progress) {
+		this.pool = pool;
+		this.progress = progress;
+		this.input = pool.acquire();
+		this.output = pool.acquire();
+	}
+
+	/**
+	 * Computes the SHA-256 digest of every written file. The bytes are hashed from the output buffers as they are
+	 * written, verifying needs no second pass over the files.
+	 */
+	public void setVerify(boolean verify) {
+		digest = verify ? DigestManifest.newDigest() : null;
+	}
+
+	/**
+	 * Forces every written file to the disk before it is closed. Required before a file is recorded in a journal,
+	 * resuming trusts the length of a recorded file and the page cache may lose its content in a crash.
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Writes the files into the output instead of the file system, <code>null</code> for the file system.
+	 */
+	public void setOutput(ExtractionOutput output) {
+		this.fileOutput = output;
+	}
+
+	/**
+	 * Times reading, inflating and writing.
+	 */
+	public void setMetrics(ExtractionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Preallocates every large file to its uncompressed size, so it is written into contiguous blocks instead of
+	 * growing with each write.
+	 */
+	public void setAllocator(Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return the SHA-256 digest of the file written last or <code>null</code> if not verifying
+	 */
+	public byte[] getDigest() {
+		return lastDigest;
+	}
+
+	/**
+	 * Extracts the entry of a random access archive and checks its crc. An existing target is replaced, a partially
+	 * written target is deleted if the extraction fails or is stopped.
+	 */
+	public void write(ZipArchive archive, ZipArchive.Entry entry, File target) throws IOException {
+		if (fileOutput != null) {
+			WritableByteChannel out = fileOutput.open(target);
+			try {
+				extract(archive, entry, out);
+			} catch (IOException e) {
+				out.close();
+				fileOutput.delete(target);
+				throw e;
+			} finally {
+				out.close();
+			}
+			return;
+		}
+
+		FileOutputStream outputStream = open(target);
+		try {
+			FileChannel out = outputStream.getChannel();
+			boolean allocated = allocate(outputStream, entry.getSize());
+			extract(archive, entry, out);
+			if (allocated) {
+				truncate(out);
+			}
+			if (sync) {
+				out.force(false);
+			}
+		} catch (IOException e) {
+			outputStream.close();
+			target.delete();
+			throw e;
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Extracts a small entry into the pack at the offset reserved for it.
+	 */
+	public void write(ZipArchive archive, ZipArchive.Entry entry, PackWriter pack, long offset) throws IOException {
+		MemoryOutput memory = getMemory();
+		extract(archive, entry, memory.channel);
+		pack.write(entry.getName(), offset, entry.getSize(), memory.array(), memory.size());
+	}
+
+	/**
+	 * Inflates the entry without writing it, only to compute its digest. Requires {@link #setVerify(boolean)}.
+	 *
+	 * @return the SHA-256 digest of the entry's content
+	 */
+	public byte[] hash(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+		if (digest == null) {
+			throw new IllegalStateException("Not verifying");
+		}
+		extract(archive, entry, null);
+		return lastDigest;
+	}
+
+	/**
+	 * @param out
+	 *            <code>null</code> to discard the content
+	 */
+	private void extract(ZipArchive archive, ZipArchive.Entry entry, WritableByteChannel out) throws IOException {
+		long dataOffset = archive.getDataOffset(entry, input);
+		startVerify();
+
+		switch (entry.getMethod()) {
+		case ZipEntry.STORED:
+			// through the buffers instead of transferTo(), the crc of stored entries has to be checked as well
+			copy(archive.getChannel(), dataOffset, entry.getSize(), out);
+			break;
+		case ZipEntry.DEFLATED:
+			inflate(archive.getChannel(), dataOffset, entry.getCompressedSize(), out);
+			break;
+		default:
+			throw new ZipException("Unsupported compression method " + entry.getMethod() + " for "
+					+ entry.getName());
+		}
+
+		if (entry.getCrc() >= 0 && crc.getValue() != entry.getCrc()) {
+			throw new ZipException("CRC mismatch in " + entry.getName() + ": expected "
+					+ Long.toHexString(entry.getCrc()) + " but was " + Long.toHexString(crc.getValue()));
+		}
+		if (digest != null) {
+			lastDigest = digest.digest();
+		}
+	}
+
+	/**
+	 * Copies the remaining content of the stream to the target file. The crc of zip streams is checked by the
+	 * {@link java.util.zip.ZipInputStream} itself. An existing target is replaced, a partially written target is
+	 * deleted if the copy fails.
+	 *
+	 * @param size
+	 *            the uncompressed size from the local header or -1 if it follows the content
+	 */
+	public void write(InputStream in, File target, long size) throws IOException {
+		startVerify();
+		if (fileOutput != null) {
+			WritableByteChannel out = fileOutput.open(target);
+			try {
+				copy(in, out);
+			} catch (IOException e) {
+				out.close();
+				fileOutput.delete(target);
+				throw e;
+			} finally {
+				out.close();
+			}
+			return;
+		}
+
+		FileOutputStream outputStream = open(target);
+		try {
+			FileChannel out = outputStream.getChannel();
+			boolean allocated = allocate(outputStream, size);
+			copy(in, out);
+			if (allocated) {
+				truncate(out);
+			}
+			if (sync) {
+				out.force(false);
+			}
+		} catch (IOException e) {
+			outputStream.close();
+			target.delete();
+			throw e;
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Copies the remaining content of the stream into the pack at the offset reserved for it.
+	 *
+	 * @param size
+	 *            the uncompressed size from the local header
+	 */
+	public void write(InputStream in, PackWriter pack, String name, long offset, long size) throws IOException {
+		startVerify();
+		MemoryOutput memory = getMemory();
+		copy(in, memory.channel);
+		pack.write(name, offset, size, memory.array(), memory.size());
+	}
+
+	private void copy(InputStream in, WritableByteChannel out) throws IOException {
+		byte[] data = output.array();
+		int length = 0;
+		int count;
+		long start = System.nanoTime();
+		while ((count = in.read(data, length, data.length - length)) != -1) {
+			addInflateTime(start);
+			length += count;
+			if (length == data.length) {
+				flush(out, length);
+				length = 0;
+			}
+			start = System.nanoTime();
+		}
+		flush(out, length);
+		if (digest != null) {
+			lastDigest = digest.digest();
+		}
+	}
+
+	private MemoryOutput getMemory() {
+		if (memory == null) {
+			memory = new MemoryOutput();
+		}
+		memory.reset();
+		return memory;
+	}
+
+	public void close() {
+		inflater.end();
+		pool.release(input);
+		pool.release(output);
+	}
+
+	private static FileOutputStream open(File target) throws IOException {
+		// the old file may be a link into a content store shared with other packages, writing through it would change
+		// them as well
+		target.delete();
+		return new FileOutputStream(target);
+	}
+
+	private boolean allocate(FileOutputStream outputStream, long size) throws IOException {
+		if (allocator == null || size < MIN_ALLOCATION) {
+			return false;
+		}
+		long start = System.nanoTime();
+		boolean allocated = allocator.allocate(outputStream.getFD(), size);
+		if (metrics != null) {
+			metrics.addWriteTime(System.nanoTime() - start);
+		}
+		return allocated;
+	}
+
+	/**
+	 * Cuts off the rest of the allocation if the content was shorter than its header said.
+	 */
+	private static void truncate(FileChannel out) throws IOException {
+		long length = out.position();
+		if (length < out.size()) {
+			out.truncate(length);
+		}
+	}
+
+	/**
+	 * Copies through the output buffer so the bytes can be checked and hashed.
+	 */
+	private void copy(FileChannel source, long position, long size, WritableByteChannel out) throws IOException {
+		long remaining = size;
+		while (remaining > 0) {
+			output.clear();
+			output.limit((int) Math.min(output.capacity(), remaining));
+			long start = System.nanoTime();
+			int count = source.read(output, position);
+			addReadTime(start);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of zip entry");
+			}
+			position += count;
+			remaining -= count;
+			flush(out, count);
+		}
+	}
+
+	private void addReadTime(long start) {
+		if (metrics != null) {
+			metrics.addReadTime(System.nanoTime() - start);
+		}
+	}
+
+	private void addInflateTime(long start) {
+		if (metrics != null) {
+			metrics.addInflateTime(System.nanoTime() - start);
+		}
+	}
+
+	private void startVerify() {
+		lastDigest = null;
+		crc.reset();
+		if (digest != null) {
+			digest.reset();
+		}
+	}
+
+	private void inflate(FileChannel source, long position, long compressedSize, WritableByteChannel out)
+			throws IOException {
+		inflater.reset();
+		byte[] in = input.array();
+		byte[] data = output.array();
+		long remaining = compressedSize;
+		boolean dummy = false;
+		int length = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (remaining > 0) {
+						input.clear();
+						input.limit((int) Math.min(input.capacity(), remaining));
+						long start = System.nanoTime();
+						int count = source.read(input, position);
+						addReadTime(start);
+						if (count < 0) {
+							throw new EOFException("Unexpected end of zip entry");
+						}
+						position += count;
+						remaining -= count;
+						inflater.setInput(in, 0, count);
+					} else if (!dummy) {
+						// raw deflate streams need one extra dummy byte at the end, see Inflater(boolean)
+						in[0] = 0;
+						inflater.setInput(in, 0, 1);
+						dummy = true;
+					} else {
+						throw new EOFException("Unexpected end of zip entry");
+					}
+				}
+
+				long start = System.nanoTime();
+				int count = inflater.inflate(data, length, data.length - length);
+				addInflateTime(start);
+				length += count;
+				if (length == data.length) {
+					flush(out, length);
+					length = 0;
+				} else if (count == 0 && !inflater.needsInput() && !inflater.finished()) {
+					throw new ZipException("Invalid deflate stream");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+		flush(out, length);
+	}
+
+	private void flush(WritableByteChannel out, int length) throws IOException {
+		if (length > 0) {
+			crc.update(output.array(), 0, length);
+			if (digest != null) {
+				digest.update(output.array(), 0, length);
+			}
+		}
+		output.clear();
+		output.limit(length);
+		long start = System.nanoTime();
+		while (out != null && output.hasRemaining()) {
+			out.write(output);
+		}
+		if (metrics != null && out != null) {
+			metrics.addWriteTime(System.nanoTime() - start);
+		}
+		if (progress != null && length > 0) {
+			progress.add(length);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+
+/**
+ * Notified about every file an extraction has written and closed. Entries which were skipped because they are
+ * already up to date are not reported.
+ */
+public interface ExtractedFileListener {
+
+	/**
+	 * May be called from several worker threads at once.
+	 */
+	void onFileWritten(File file);
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Stop request for a running job. The copy loops check it through {@link ExtractionProgress#add(long)} after every
+ * buffer, a stopped job fails with an {@link InterruptedIOException} within one buffer of the request. It also hands
+ * the job's {@link ExtractionMetrics} to the completion broadcast and tells the job whether to notify.
+ */
+class ExtractionControl {
+
+	private static final int RUNNING = 0;
+	private static final int PAUSED = 1;
+	private static final int CANCELED = 2;
+
+	private final long downloadId;
+
+	private volatile int state = RUNNING;
+
+	private volatile ExtractionMetrics metrics;
+
+	private volatile boolean silent;
+
+	ExtractionControl(long downloadId) {
+		this.downloadId = downloadId;
+	}
+
+	public long getDownloadId() {
+		return downloadId;
+	}
+
+	/**
+	 * @return the metrics of the job's extraction or <code>null</code> if it did not get that far
+	 */
+	public ExtractionMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(ExtractionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return <code>true</code> if the job shows no notification, its progress is shown by a {@link DownloadBatch}
+	 */
+	public boolean isSilent() {
+		return silent;
+	}
+
+	public void setSilent(boolean silent) {
+		this.silent = silent;
+	}
+
+	/**
+	 * Stops the job and keeps what has been extracted, starting it again continues with the remaining entries.
+	 */
+	public void pause() {
+		if (state == RUNNING) {
+			state = PAUSED;
+		}
+	}
+
+	/**
+	 * Stops the job and removes its partial output.
+	 */
+	public void cancel() {
+		state = CANCELED;
+	}
+
+	public boolean isPaused() {
+		return state == PAUSED;
+	}
+
+	public boolean isCanceled() {
+		return state == CANCELED;
+	}
+
+	/**
+	 * @throws InterruptedIOException
+	 *             if the job has been paused or canceled
+	 */
+	public void checkpoint() throws InterruptedIOException {
+		int current = state;
+		if (current != RUNNING) {
+			throw new InterruptedIOException(current == PAUSED ? "Paused" : "Canceled");
+		}
+	}
+}
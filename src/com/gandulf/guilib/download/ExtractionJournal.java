@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Append-only checkpoint file listing the entries of an archive which have been extracted completely. Each line is
+ * written after the file has been forced to the disk and closed, so an interrupted extraction can skip everything
+ * recorded here and continue with the remaining entries.
+ */
+class ExtractionJournal extends ExtractionManifest implements Closeable {
+
+	private Writer writer;
+
+	ExtractionJournal(File file) throws IOException {
+		super(file);
+	}
+
+	@Override
+	public synchronized void markCompleted(String name, long size, long crc) throws IOException {
+		if (writer == null) {
+			File file = getFile();
+			File parent = file.getParentFile();
+			if (parent != null && !parent.isDirectory()) {
+				parent.mkdirs();
+			}
+			boolean resumed = file.length() > 0;
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+			if (resumed) {
+				// terminate a possibly truncated last line, empty lines are skipped while loading
+				writer.write('\n');
+			}
+		}
+		writeLine(writer, name, size, crc);
+		writer.flush();
+		super.markCompleted(name, size, crc);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Removes the journal once the archive has been extracted completely.
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		clear();
+		if (getFile().exists() && !getFile().delete()) {
+			throw new IOException("Could not delete journal " + getFile());
+		}
+	}
+}
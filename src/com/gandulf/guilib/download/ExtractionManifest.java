@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * List of extracted files with their size and crc as stored in the archive. One line per entry:
+ * <code>crc \t size \t name</code>. Written next to an install, it allows an update to skip unchanged entries and to
+ * remove files which are no longer part of the package.
+ */
+class ExtractionManifest {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private final Map<String, long[]> entries = new HashMap<>();
+
+	ExtractionManifest(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Only the length of the target is compared, its content is not read again. Files are forced to the disk before
+	 * they are recorded in an {@link ExtractionJournal}.
+	 *
+	 * @return <code>true</code> if the entry has been recorded with the same size and crc and the target file still
+	 *         has the expected length
+	 */
+	public synchronized boolean isCompleted(String name, long size, long crc, File target) {
+		long[] info = entries.get(name);
+		return info != null && size >= 0 && crc >= 0 && info[0] == size && info[1] == crc && target.isFile()
+				&& target.length() == size;
+	}
+
+	/**
+	 * @return the recorded size of the entry or -1 if it is not listed
+	 */
+	public synchronized long getSize(String name) {
+		long[] info = entries.get(name);
+		return info != null ? info[0] : -1;
+	}
+
+	public synchronized void markCompleted(String name, long size, long crc) throws IOException {
+		entries.put(name, new long[] { size, crc });
+	}
+
+	/**
+	 * Writes all entries to a temporary file and renames it over the manifest, so a crash never leaves a partial
+	 * manifest behind.
+	 */
+	public synchronized void save() throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory()) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+		try {
+			for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+				writeLine(writer, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write manifest " + file);
+		}
+	}
+
+	public void putAll(ExtractionManifest other) {
+		synchronized (other) {
+			synchronized (this) {
+				entries.putAll(other.entries);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	static void writeLine(Writer writer, String name, long size, long crc) throws IOException {
+		writer.write(Long.toString(crc));
+		writer.write('\t');
+		writer.write(Long.toString(size));
+		writer.write('\t');
+		writer.write(name);
+		writer.write('\n');
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// the last line may be truncated if the process died while writing it
+				int first = line.indexOf('\t');
+				int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+				if (second < 0) {
+					continue;
+				}
+				try {
+					long crc = Long.parseLong(line.substring(0, first));
+					long size = Long.parseLong(line.substring(first + 1, second));
+					entries.put(line.substring(second + 1), new long[] { size, crc });
+				} catch (NumberFormatException e) {
+					// ignore corrupt lines, the entry is simply extracted again
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
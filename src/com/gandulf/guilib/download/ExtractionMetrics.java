@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one extraction job: bytes read from the archive and written to disk, entries, and the time spent
+ * reading, inflating, writing and creating directories. The times are summed over all worker threads, with parallel
+ * extraction they add up to more than the elapsed time. Thread safe, the copy loops update it after every buffer.
+ */
+public class ExtractionMetrics {
+
+	/**
+	 * Receives the metrics of every job of the {@link UnzipIntentService}, see
+	 * {@link UnzipIntentService#setMetricsListener(Listener)}.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread of the job once it has finished, also if it failed or has been stopped.
+		 *
+		 * @param downloadId
+		 *            id of the download or -1 for streaming downloads
+		 * @param url
+		 *            url of the archive if known
+		 * @param result
+		 *            one of the <code>UnzipIntentService.RESULT_*</code> codes
+		 */
+		void onExtractionFinished(long downloadId, String url, int result, ExtractionMetrics metrics);
+	}
+
+	/**
+	 * Number of entries kept by {@link #getSlowestEntries()}.
+	 */
+	public static final int SLOWEST_ENTRIES = 5;
+
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong skippedEntries = new AtomicLong();
+
+	private final AtomicLong readNanos = new AtomicLong();
+	private final AtomicLong inflateNanos = new AtomicLong();
+	private final AtomicLong writeNanos = new AtomicLong();
+	private final AtomicLong mkdirsNanos = new AtomicLong();
+
+	private final long startTime = System.nanoTime();
+	private volatile long endTime;
+
+	/**
+	 * Sorted by time, slowest first.
+	 */
+	private final String[] slowestNames = new String[SLOWEST_ENTRIES];
+	private final long[] slowestNanos = new long[SLOWEST_ENTRIES];
+
+	void addReadTime(long nanos) {
+		readNanos.addAndGet(nanos);
+	}
+
+	void addInflateTime(long nanos) {
+		inflateNanos.addAndGet(nanos);
+	}
+
+	void addWriteTime(long nanos) {
+		writeNanos.addAndGet(nanos);
+	}
+
+	void addMkdirsTime(long nanos) {
+		mkdirsNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records an entry which has been written.
+	 *
+	 * @param nanos
+	 *            time from opening the entry until its file was closed
+	 */
+	void addEntry(String name, long compressedSize, long size, long nanos) {
+		entries.incrementAndGet();
+		bytesIn.addAndGet(compressedSize);
+		bytesOut.addAndGet(size);
+
+		synchronized (slowestNanos) {
+			if (nanos <= slowestNanos[SLOWEST_ENTRIES - 1]) {
+				return;
+			}
+			int i = SLOWEST_ENTRIES - 1;
+			while (i > 0 && slowestNanos[i - 1] < nanos) {
+				slowestNanos[i] = slowestNanos[i - 1];
+				slowestNames[i] = slowestNames[i - 1];
+				i--;
+			}
+			slowestNanos[i] = nanos;
+			slowestNames[i] = name;
+		}
+	}
+
+	/**
+	 * Records an entry which was up to date and has not been written.
+	 */
+	void addSkippedEntry() {
+		skippedEntries.incrementAndGet();
+	}
+
+	/**
+	 * Stops the clock of {@link #getElapsedMillis()}.
+	 */
+	void finish() {
+		if (endTime == 0) {
+			endTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return compressed bytes of the written entries
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return uncompressed bytes of the written entries
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getEntries() {
+		return entries.get();
+	}
+
+	public long getSkippedEntries() {
+		return skippedEntries.get();
+	}
+
+	public long getElapsedMillis() {
+		long end = endTime != 0 ? endTime : System.nanoTime();
+		return TimeUnit.NANOSECONDS.toMillis(end - startTime);
+	}
+
+	/**
+	 * @return time spent reading compressed data from the archive
+	 */
+	public long getReadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(readNanos.get());
+	}
+
+	/**
+	 * @return time spent inflating, for streamed archives it includes waiting for the network
+	 */
+	public long getInflateMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(inflateNanos.get());
+	}
+
+	/**
+	 * @return time spent writing the files, for stored entries copied between channels it includes reading them
+	 */
+	public long getWriteMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(writeNanos.get());
+	}
+
+	public long getMkdirsMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mkdirsNanos.get());
+	}
+
+	public double getEntriesPerSecond() {
+		return entries.get() * 1000.0 / Math.max(1, getElapsedMillis());
+	}
+
+	/**
+	 * @return uncompressed bytes written per second
+	 */
+	public long getBytesPerSecond() {
+		return bytesOut.get() * 1000 / Math.max(1, getElapsedMillis());
+	}
+
+	/**
+	 * @return names of the entries which took longest to write, slowest first
+	 */
+	public String[] getSlowestEntries() {
+		synchronized (slowestNanos) {
+			int count = 0;
+			while (count < SLOWEST_ENTRIES && slowestNames[count] != null) {
+				count++;
+			}
+			String[] names = new String[count];
+			System.arraycopy(slowestNames, 0, names, 0, count);
+			return names;
+		}
+	}
+
+	/**
+	 * @return milliseconds spent on each of the {@link #getSlowestEntries()}
+	 */
+	public long[] getSlowestEntryMillis() {
+		synchronized (slowestNanos) {
+			String[] names = getSlowestEntries();
+			long[] millis = new long[names.length];
+			for (int i = 0; i < millis.length; i++) {
+				millis[i] = TimeUnit.NANOSECONDS.toMillis(slowestNanos[i]);
+			}
+			return millis;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getEntries() + " entries (" + getSkippedEntries() + " skipped), " + getBytesIn() + " -> "
+				+ getBytesOut() + " bytes in " + getElapsedMillis() + " ms, read " + getReadMillis() + " ms, inflate "
+				+ getInflateMillis() + " ms, write " + getWriteMillis() + " ms, mkdirs " + getMkdirsMillis() + " ms";
+	}
+}
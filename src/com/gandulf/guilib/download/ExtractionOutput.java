@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Receives the content of the extracted files instead of the file system, e.g. to write them into storage managed by
+ * the application or to keep a small package in memory. Files are identified by their path below the output
+ * directory, the manifest and the journal of the install are still written there.
+ */
+public interface ExtractionOutput {
+
+	/**
+	 * Opens a file for writing, an existing file is replaced. The channel is closed once the file has been written.
+	 * May be called from several worker threads at once.
+	 */
+	WritableByteChannel open(File file) throws IOException;
+
+	/**
+	 * Removes a file which could not be written completely.
+	 */
+	void delete(File file);
+}
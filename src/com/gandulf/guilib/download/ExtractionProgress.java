@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the uncompressed bytes of an extraction and publishes the progress at a limited rate. The copy loops report
+ * every buffer they write, {@link #onProgress} is only called once enough time has passed or enough bytes have been
+ * written since the last call. Thread safe, several workers may report to the same instance.
+ */
+public abstract class ExtractionProgress {
+
+	/**
+	 * Never publish more often than this.
+	 */
+	private static final long MIN_INTERVAL = 100;
+	/**
+	 * Publish at least this often while bytes are being written.
+	 */
+	private static final long MAX_INTERVAL = 1000;
+	private static final long MIN_BYTES = 1024 * 1024;
+
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+
+	private volatile long total = -1;
+	private volatile String current;
+
+	private volatile ExtractionControl control;
+
+	private final long startTime;
+	private long lastTime;
+	private long lastDone;
+
+	protected ExtractionProgress() {
+		startTime = System.currentTimeMillis();
+		lastTime = startTime;
+	}
+
+	/**
+	 * @param total
+	 *            uncompressed size of all entries or -1 if unknown
+	 */
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getDone() {
+		return done.get();
+	}
+
+	/**
+	 * Stops the copy loops which report to this instance once the job is paused or canceled.
+	 */
+	void setControl(ExtractionControl control) {
+		this.control = control;
+	}
+
+	/**
+	 * Sets the name of the entry being extracted, it is shown with the next published update.
+	 */
+	public void setCurrent(String current) {
+		this.current = current;
+	}
+
+	/**
+	 * Bytes written to the output.
+	 *
+	 * @throws InterruptedIOException
+	 *             if the job has been paused or canceled, the copy loop has to stop
+	 */
+	public void add(long bytes) throws InterruptedIOException {
+		written.addAndGet(bytes);
+		done.addAndGet(bytes);
+		publish(false);
+		ExtractionControl control = this.control;
+		if (control != null) {
+			control.checkpoint();
+		}
+	}
+
+	/**
+	 * Bytes of entries which did not have to be written, they count towards the progress but not the throughput.
+	 */
+	public void skip(long bytes) {
+		if (bytes > 0) {
+			done.addAndGet(bytes);
+			publish(false);
+		}
+	}
+
+	/**
+	 * Publishes the final state regardless of the rate limit.
+	 */
+	public void finish() {
+		publish(true);
+	}
+
+	private void publish(boolean force) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			long doneNow = done.get();
+			long elapsed = now - lastTime;
+			if (!force) {
+				long threshold = total > 0 ? Math.max(MIN_BYTES, total / 100) : MIN_BYTES;
+				if (elapsed < MIN_INTERVAL || (elapsed < MAX_INTERVAL && doneNow - lastDone < threshold)) {
+					return;
+				}
+			}
+			lastTime = now;
+			lastDone = doneNow;
+
+			long bytesPerSecond = written.get() * 1000 / Math.max(1, now - startTime);
+			long eta = total > 0 && bytesPerSecond > 0 ? Math.max(0, total - doneNow) * 1000 / bytesPerSecond : -1;
+			onProgress(doneNow, total, bytesPerSecond, eta, current);
+		}
+	}
+
+	/**
+	 * Called at a limited rate from whichever thread reported the bytes which crossed the threshold, calls never
+	 * overlap.
+	 *
+	 * @param total
+	 *            uncompressed size of all entries or -1 if unknown
+	 * @param eta
+	 *            estimated milliseconds until completion or -1 if unknown
+	 */
+	protected abstract void onProgress(long done, long total, long bytesPerSecond, long eta, String current);
+}
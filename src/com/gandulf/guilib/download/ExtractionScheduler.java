@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs extraction jobs with a limited number of jobs at the same time. Waiting jobs are started by priority, jobs of
+ * equal priority in the order they were submitted. The priority of a waiting job grows with the time it waits, so a
+ * steady stream of important jobs can not starve the others.
+ */
+public class ExtractionScheduler {
+
+	public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+	/**
+	 * A waiting job gains one priority level per this many milliseconds.
+	 */
+	private static final long AGING_INTERVAL = 10 * 1000;
+
+	private static final long KEEP_ALIVE = 30 * 1000;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final ThreadPoolExecutor executor;
+
+	private static class Job implements Runnable, Comparable<Job> {
+		private final Runnable runnable;
+		private final int priority;
+		private final long submitted;
+		private final long sequence;
+
+		Job(Runnable runnable, int priority, long sequence) {
+			this.runnable = runnable;
+			this.priority = priority;
+			this.submitted = System.currentTimeMillis();
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Ordering key which does not change while the job waits: a job submitted later needs a higher priority to
+		 * overtake an earlier one, one level per {@link #AGING_INTERVAL}.
+		 */
+		private long rank() {
+			return submitted - priority * AGING_INTERVAL;
+		}
+
+		@Override
+		public void run() {
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(Job other) {
+			long lhs = rank();
+			long rhs = other.rank();
+			if (lhs != rhs) {
+				return lhs < rhs ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	public ExtractionScheduler(int maxConcurrent) {
+		int threads = Math.max(1, maxConcurrent);
+		executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ExtractionScheduler-" + count.incrementAndGet());
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Changes the number of jobs running at the same time, running jobs are not affected.
+	 */
+	public void setMaxConcurrent(int maxConcurrent) {
+		int threads = Math.max(1, maxConcurrent);
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	public int getMaxConcurrent() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @param priority
+	 *            jobs with a higher value are started first
+	 */
+	public void execute(Runnable job, int priority) {
+		executor.execute(new Job(job, priority, sequence.getAndIncrement()));
+	}
+
+	/**
+	 * Waiting jobs are still executed, no new jobs are accepted.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small files of a package installed with {@link Downloader#setPackUnzip(boolean)}. Their contents are concatenated
+ * in one pack file next to the manifest, larger files of the package are regular files in the output directory. The
+ * pack is mapped into memory, a lookup is a binary search over its index and a file is a view of the mapping, no file
+ * is opened per entry. Thread safe.
+ * <p>
+ * Layout: the contents, the index records sorted by name, the names in UTF-8 and a trailer with the position of the
+ * index, the number of records and a magic number. Each record holds the offset and length of the content and the
+ * offset and length of the name.
+ */
+public class PackFile implements Closeable {
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer buffer;
+
+	private final int count;
+
+	private final int indexOffset;
+
+	private final int namesOffset;
+
+	/**
+	 * Opens the pack of the package downloaded from <code>url</code> into <code>baseDir</code>.
+	 *
+	 * @throws FileNotFoundException
+	 *             if the package has not been installed with a pack
+	 */
+	public static PackFile open(File baseDir, String url) throws IOException {
+		return new PackFile(UnzipIntentService.getPackFile(baseDir, url));
+	}
+
+	public PackFile(File file) throws IOException {
+		channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			long size = channel.size();
+			if (size < PackWriter.TRAILER_SIZE || size > PackWriter.MAX_SIZE) {
+				throw new IOException("Invalid pack file " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int trailer = (int) size - PackWriter.TRAILER_SIZE;
+			long index = buffer.getLong(trailer);
+			count = buffer.getInt(trailer + 8);
+			if (buffer.getInt(trailer + 12) != PackWriter.MAGIC || index < 0 || count < 0
+					|| index + (long) count * PackWriter.RECORD_SIZE > trailer) {
+				throw new IOException("Invalid pack file " + file);
+			}
+			indexOffset = (int) index;
+			namesOffset = indexOffset + count * PackWriter.RECORD_SIZE;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of packed files
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the names of the packed files in the order of their UTF-8 bytes
+	 */
+	public List<String> list() {
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add(getName(i));
+		}
+		return names;
+	}
+
+	public boolean exists(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	/**
+	 * @return the size of the file or -1 if it is not packed
+	 */
+	public long getSize(String name) {
+		int i = indexOf(name);
+		return i >= 0 ? buffer.getInt(getRecord(i) + 8) : -1;
+	}
+
+	/**
+	 * @return a read-only view of the content, valid as long as the process keeps the mapping, or <code>null</code>
+	 *         if the file is not packed
+	 */
+	public ByteBuffer getBuffer(String name) {
+		int i = indexOf(name);
+		if (i < 0) {
+			return null;
+		}
+		int record = getRecord(i);
+		int offset = (int) buffer.getLong(record);
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + buffer.getInt(record + 8));
+		view.position(offset);
+		return view.slice();
+	}
+
+	public InputStream openStream(String name) throws IOException {
+		ByteBuffer content = getBuffer(name);
+		if (content == null) {
+			throw new FileNotFoundException(name + " not found in pack");
+		}
+		return new BufferInputStream(content);
+	}
+
+	/**
+	 * Closes the file, the mapping stays valid until it is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private int getRecord(int i) {
+		return indexOffset + i * PackWriter.RECORD_SIZE;
+	}
+
+	private String getName(int i) {
+		int record = getRecord(i);
+		byte[] name = new byte[buffer.getInt(record + 16)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(namesOffset + buffer.getInt(record + 12));
+		view.get(name);
+		return new String(name, ZipIndex.UTF8);
+	}
+
+	private int indexOf(String name) {
+		byte[] key = name.getBytes(ZipIndex.UTF8);
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the name of the record with the key byte by byte, the order the {@link PackWriter} sorts by.
+	 */
+	private int compare(int i, byte[] key) {
+		int record = getRecord(i);
+		int start = namesOffset + buffer.getInt(record + 12);
+		int length = buffer.getInt(record + 16);
+		int common = Math.min(length, key.length);
+		for (int j = 0; j < common; j++) {
+			int diff = (buffer.get(start + j) & 0xff) - (key[j] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return length - key.length;
+	}
+
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) {
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
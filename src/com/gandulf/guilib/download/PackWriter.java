@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Writes the small entries of an extraction into a {@link PackFile}. A worker reserves the room of an entry by its
+ * size from the central directory and writes the content at that offset, the workers only wait for each other while
+ * reserving. The pack is built in a temporary file which replaces the previous pack on {@link #commit()}, an
+ * interrupted extraction packs its small entries again.
+ */
+class PackWriter {
+
+	/**
+	 * Entries up to this size are packed by default. Smaller files waste most of their block and their inode costs
+	 * more than their content.
+	 */
+	public static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+	static final int MAGIC = 0x4750414b;
+
+	static final int RECORD_SIZE = 20;
+
+	static final int TRAILER_SIZE = 16;
+
+	/**
+	 * The reader maps the whole pack at once.
+	 */
+	static final long MAX_SIZE = Integer.MAX_VALUE;
+
+	private static class Record {
+		final byte[] name;
+		final long offset;
+		final int length;
+
+		Record(byte[] name, long offset, int length) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File file;
+	private final File tmp;
+
+	private final int threshold;
+
+	private final FileChannel channel;
+
+	/**
+	 * Guarded by itself, like {@link #position} and {@link #indexSize}.
+	 */
+	private final List<Record> records = new ArrayList<>();
+
+	private long position;
+
+	private long indexSize;
+
+	PackWriter(File file, int threshold) throws IOException {
+		this.file = file;
+		this.tmp = new File(file.getPath() + ".tmp");
+		this.threshold = threshold;
+		channel = new RandomAccessFile(tmp, "rw").getChannel();
+		channel.truncate(0);
+	}
+
+	/**
+	 * @return <code>true</code> if entries of this size are packed
+	 */
+	public boolean accepts(long size) {
+		return size >= 0 && size <= threshold;
+	}
+
+	/**
+	 * Reserves the room for an entry.
+	 *
+	 * @return the offset to pass to {@link #write(String, long, long, byte[], int)} or -1 if the pack is full and the
+	 *         entry has to be written as a file
+	 */
+	public long reserve(String name, long size) {
+		synchronized (records) {
+			long index = indexSize + RECORD_SIZE + name.length() * 3L;
+			if (position + size + index + TRAILER_SIZE > MAX_SIZE) {
+				return -1;
+			}
+			long offset = position;
+			position += size;
+			indexSize = index;
+			return offset;
+		}
+	}
+
+	/**
+	 * Writes the content of an entry at its reserved offset.
+	 *
+	 * @param size
+	 *            the reserved size, a shorter content leaves the rest unused
+	 */
+	public void write(String name, long offset, long size, byte[] data, int length) throws IOException {
+		if (length > size) {
+			throw new ZipException("Entry " + name + " is larger than its header says");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+		synchronized (records) {
+			records.add(new Record(name.getBytes(ZipIndex.UTF8), offset, length));
+		}
+	}
+
+	/**
+	 * @return the names of the packed entries
+	 */
+	public List<String> getNames() {
+		synchronized (records) {
+			List<String> names = new ArrayList<>(records.size());
+			for (Record record : records) {
+				names.add(new String(record.name, ZipIndex.UTF8));
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Appends the index and replaces the previous pack.
+	 */
+	public void commit() throws IOException {
+		List<Record> sorted;
+		long indexOffset;
+		synchronized (records) {
+			sorted = new ArrayList<>(records);
+			indexOffset = position;
+		}
+		Collections.sort(sorted, new Comparator<Record>() {
+			@Override
+			public int compare(Record lhs, Record rhs) {
+				int common = Math.min(lhs.name.length, rhs.name.length);
+				for (int i = 0; i < common; i++) {
+					int diff = (lhs.name[i] & 0xff) - (rhs.name[i] & 0xff);
+					if (diff != 0) {
+						return diff;
+					}
+				}
+				return lhs.name.length - rhs.name.length;
+			}
+		});
+
+		int namesLength = 0;
+		for (Record record : sorted) {
+			namesLength += record.name.length;
+		}
+		ByteBuffer index = ByteBuffer.allocate(sorted.size() * RECORD_SIZE + namesLength
+				+ TRAILER_SIZE);
+		int nameOffset = 0;
+		for (Record record : sorted) {
+			index.putLong(record.offset);
+			index.putInt(record.length);
+			index.putInt(nameOffset);
+			index.putInt(record.name.length);
+			nameOffset += record.name.length;
+		}
+		for (Record record : sorted) {
+			index.put(record.name);
+		}
+		index.putLong(indexOffset);
+		index.putInt(sorted.size());
+		index.putInt(MAGIC);
+		index.flip();
+
+		try {
+			while (index.hasRemaining()) {
+				channel.write(index, indexOffset + index.position());
+			}
+			// the rename must not publish a pack whose content is still in the page cache only
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write " + file);
+		}
+	}
+
+	/**
+	 * Deletes the unfinished pack, the previous one is kept.
+	 */
+	public void abort() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		tmp.delete();
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Files of a package which has been installed lazily, see {@link Downloader#setLazyUnzip(boolean)}. The archive stays
+ * compressed in the output directory, entries are streamed from it or extracted into a cache the first time they are
+ * opened as a file. The cache is bounded in size, the files used least recently are removed first.
+ * <p>
+ * Files returned by {@link #getFile(String)} may be evicted by later calls, open them right away instead of keeping
+ * the path around. Thread safe.
+ */
+public class PackageArchive implements Closeable {
+
+	public static final long DEFAULT_MAX_CACHE_SIZE = 64 * 1024 * 1024;
+
+	private final ZipArchive archive;
+
+	private final File cacheDir;
+
+	private long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+	/**
+	 * Size of the cached files by name, in the order of their last access.
+	 */
+	private final LinkedHashMap<String, Long> cached = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long cacheSize;
+
+	/**
+	 * Opens the package downloaded from <code>url</code> into <code>baseDir</code>.
+	 *
+	 * @throws FileNotFoundException
+	 *             if the package has not been installed lazily
+	 */
+	public static PackageArchive open(File baseDir, String url) throws IOException {
+		return new PackageArchive(UnzipIntentService.getArchiveFile(baseDir, url),
+				UnzipIntentService.getArchiveCacheDir(baseDir, url));
+	}
+
+	public PackageArchive(File archiveFile, File cacheDir) throws IOException {
+		if (!archiveFile.isFile()) {
+			throw new FileNotFoundException(archiveFile.getPath());
+		}
+		this.archive = new ZipArchive(new RandomAccessFile(archiveFile, "r").getChannel());
+		this.cacheDir = cacheDir;
+		loadCache();
+	}
+
+	public void setMaxCacheSize(long maxCacheSize) {
+		synchronized (cached) {
+			this.maxCacheSize = maxCacheSize;
+			trimCache(null);
+		}
+	}
+
+	public long getCacheSize() {
+		synchronized (cached) {
+			return cacheSize;
+		}
+	}
+
+	/**
+	 * @return the uncompressed size of all files of the package
+	 */
+	public long getTotalSize() {
+		return archive.getTotalSize();
+	}
+
+	/**
+	 * @return the names of all files and directories of the package, read from the index without any I/O
+	 */
+	public List<String> list() {
+		ZipIndex index = archive.getIndex();
+		List<String> names = new ArrayList<>(index.size());
+		for (int i = 0; i < index.size(); i++) {
+			names.add(index.getName(i));
+		}
+		return names;
+	}
+
+	public boolean exists(String name) {
+		return archive.getIndex().indexOf(name) >= 0;
+	}
+
+	/**
+	 * @return the uncompressed size of the file or -1 if the package does not contain it
+	 */
+	public long getSize(String name) {
+		ZipIndex index = archive.getIndex();
+		int i = index.indexOf(name);
+		return i >= 0 ? index.getSize(i) : -1;
+	}
+
+	/**
+	 * Streams the file straight out of the archive, nothing is written to the cache. A file which is already cached is
+	 * read from there.
+	 */
+	public InputStream openStream(String name) throws IOException {
+		File file = getCachedFile(name);
+		if (file != null) {
+			return new FileInputStream(file);
+		}
+		return archive.getInputStream(getEntry(name));
+	}
+
+	/**
+	 * Extracts the file into the cache unless it is already there, its crc is checked while it is written.
+	 */
+	public File getFile(String name) throws IOException {
+		File file = getCachedFile(name);
+		if (file != null) {
+			return file;
+		}
+
+		ZipArchive.Entry entry = getEntry(name);
+		if (entry.isDirectory()) {
+			throw new FileNotFoundException(name + " is a directory");
+		}
+		file = new File(cacheDir, name);
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+
+		// concurrent readers of the same file each extract their own copy, the last rename wins
+		File tmp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		EntryWriter writer = new EntryWriter(BufferPool.getDefault(), null);
+		try {
+			// the crc is checked, a damaged archive does not fill the cache with broken files
+			writer.write(archive, entry, tmp);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write " + file);
+		}
+
+		synchronized (cached) {
+			Long previous = cached.put(name, entry.getSize());
+			cacheSize += entry.getSize() - (previous != null ? previous : 0);
+			trimCache(name);
+		}
+		return file;
+	}
+
+	/**
+	 * Removes all cached files.
+	 */
+	public void clearCache() {
+		synchronized (cached) {
+			for (String name : cached.keySet()) {
+				new File(cacheDir, name).delete();
+			}
+			cached.clear();
+			cacheSize = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		archive.close();
+	}
+
+	private ZipArchive.Entry getEntry(String name) throws FileNotFoundException {
+		ZipArchive.Entry entry = archive.getEntry(name);
+		if (entry == null) {
+			throw new FileNotFoundException(name + " not found in package");
+		}
+		return entry;
+	}
+
+	private File getCachedFile(String name) {
+		synchronized (cached) {
+			if (cached.get(name) == null) {
+				return null;
+			}
+			File file = new File(cacheDir, name);
+			if (file.isFile()) {
+				// the order survives a restart of the process
+				file.setLastModified(System.currentTimeMillis());
+				return file;
+			}
+			cacheSize -= cached.remove(name);
+			return null;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used files until the cache fits its size.
+	 *
+	 * @param keep
+	 *            the file which has just been added, never evicted
+	 */
+	private void trimCache(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = cached.entrySet().iterator();
+		while (cacheSize > maxCacheSize && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			if (eldest.getKey().equals(keep)) {
+				continue;
+			}
+			new File(cacheDir, eldest.getKey()).delete();
+			cacheSize -= eldest.getValue();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Picks up the files cached by an earlier process, ordered by their last access. Files which are not part of the
+	 * archive or do not have the size of their entry are left over from a crash and deleted.
+	 */
+	private void loadCache() {
+		List<File> files = new ArrayList<>();
+		collectFiles(cacheDir, files);
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		String root = cacheDir.getPath() + File.separator;
+		synchronized (cached) {
+			for (File file : sorted) {
+				String name = file.getPath().substring(root.length()).replace(File.separatorChar, '/');
+				long size = getSize(name);
+				if (size >= 0 && file.length() == size) {
+					cached.put(name, size);
+					cacheSize += size;
+				} else {
+					file.delete();
+				}
+			}
+			trimCache(null);
+		}
+	}
+
+	private static void collectFiles(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				collectFiles(child, files);
+			} else {
+				files.add(child);
+			}
+		}
+	}
+}
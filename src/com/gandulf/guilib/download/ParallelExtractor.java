@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the entries of a {@link ZipArchive} on a fixed size worker pool. Directories are created up front on the
+ * calling thread, afterwards every file entry is inflated independently.
+ */
+class ParallelExtractor {
+
+	interface Callback {
+		/**
+		 * Called on the extracting thread after the entry has been written completely or was skipped.
+		 */
+		void onEntryExtracted(ZipArchive.Entry entry);
+	}
+
+	private final ZipArchive archive;
+	private final File baseDir;
+	private final int threads;
+
+	private BufferPool bufferPool = BufferPool.getDefault();
+
+	private ExtractionProgress progress;
+
+	private ExtractedFileListener fileListener;
+
+	/**
+	 * One writer per worker, handed from task to task so buffers and inflaters are reused.
+	 */
+	private final ConcurrentLinkedQueue<EntryWriter> writers = new ConcurrentLinkedQueue<>();
+
+	private ExtractionJournal journal;
+
+	private ExtractionManifest installed;
+
+	private DigestManifest digests;
+
+	private ContentStore store;
+
+	private ExtractionOutput output;
+
+	private ExtractionMetrics metrics;
+
+	private EntryWriter.Allocator allocator;
+
+	private PackWriter pack;
+
+	private final DirectoryCache directories = new DirectoryCache();
+
+	private volatile boolean failed;
+
+	ParallelExtractor(ZipArchive archive, File baseDir) {
+		this(archive, baseDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	ParallelExtractor(ZipArchive archive, File baseDir, int threads) {
+		this.archive = archive;
+		this.baseDir = baseDir;
+		this.threads = Math.max(1, threads);
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Receives the uncompressed bytes written by all workers.
+	 */
+	public void setProgress(ExtractionProgress progress) {
+		this.progress = progress;
+	}
+
+	public void setFileListener(ExtractedFileListener fileListener) {
+		this.fileListener = fileListener;
+	}
+
+	/**
+	 * Entries recorded in the journal are skipped, newly extracted entries are appended to it.
+	 */
+	public void setJournal(ExtractionJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Update mode: entries listed unchanged in the manifest of the existing install are not written again, files of
+	 * the manifest which are no longer part of the archive are deleted after the extraction succeeded.
+	 */
+	public void setInstalledManifest(ExtractionManifest installed) {
+		this.installed = installed;
+	}
+
+	/**
+	 * Verifies every written entry against its crc and records its SHA-256 digest, a mismatch fails the extraction.
+	 */
+	public void setDigests(DigestManifest digests) {
+		this.digests = digests;
+	}
+
+	public void setMetrics(ExtractionMetrics metrics) {
+		this.metrics = metrics;
+		directories.setMetrics(metrics);
+	}
+
+	/**
+	 * Files whose content is already in the store are linked instead of written, new contents are added to it.
+	 */
+	public void setContentStore(ContentStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Preallocates large files before they are written.
+	 */
+	public void setAllocator(EntryWriter.Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Small entries are written into the pack instead of files. They are always written, the pack is built anew.
+	 */
+	public void setPack(PackWriter pack) {
+		this.pack = pack;
+	}
+
+	/**
+	 * Writes the files into the output instead of the file system.
+	 */
+	public void setOutput(ExtractionOutput output) {
+		this.output = output;
+	}
+
+	public void extract(Callback callback) throws IOException, InterruptedException {
+		directories.createAll(baseDir, archive.getIndex(), pack);
+
+		List<ZipArchive.Entry> files = new ArrayList<>();
+		for (ZipArchive.Entry entry : archive.getEntries()) {
+			if (!entry.isDirectory()) {
+				if ((pack == null || !pack.accepts(entry.getSize()))
+						&& isUpToDate(entry, new File(baseDir, entry.getName()))) {
+					if (progress != null) {
+						progress.skip(entry.getSize());
+					}
+					if (metrics != null) {
+						metrics.addSkippedEntry();
+					}
+					if (callback != null) {
+						callback.onEntryExtracted(entry);
+					}
+				} else {
+					files.add(entry);
+				}
+			}
+		}
+
+		// start with the largest entries, so a big file at the end does not leave the other workers idle
+		Collections.sort(files, new Comparator<ZipArchive.Entry>() {
+			@Override
+			public int compare(ZipArchive.Entry lhs, ZipArchive.Entry rhs) {
+				return lhs.getCompressedSize() < rhs.getCompressedSize() ? 1
+						: (lhs.getCompressedSize() == rhs.getCompressedSize() ? 0 : -1);
+			}
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+		ExecutorCompletionService<ZipArchive.Entry> completion = new ExecutorCompletionService<>(executor);
+		try {
+			for (final ZipArchive.Entry entry : files) {
+				completion.submit(new Callable<ZipArchive.Entry>() {
+					@Override
+					public ZipArchive.Entry call() throws IOException {
+						if (!failed) {
+							extractEntry(entry);
+						}
+						return entry;
+					}
+				});
+			}
+
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					ZipArchive.Entry entry = completion.take().get();
+					if (callback != null) {
+						callback.onEntryExtracted(entry);
+					}
+				} catch (ExecutionException e) {
+					failed = true;
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else {
+						throw new IOException(cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+			throw e;
+		} finally {
+			// do not interrupt the workers, an interrupted read closes the shared channel
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+			for (EntryWriter writer = writers.poll(); writer != null; writer = writers.poll()) {
+				writer.close();
+			}
+		}
+
+		if (installed != null) {
+			removeStaleFiles();
+		}
+	}
+
+	private void removeStaleFiles() throws IOException {
+		Set<String> names = new HashSet<>();
+		for (ZipArchive.Entry entry : archive.getEntries()) {
+			names.add(entry.getName());
+		}
+		for (String name : installed.getNames()) {
+			if (!names.contains(name)) {
+				File file = new File(baseDir, name);
+				if (file.isFile() && !file.delete()) {
+					throw new IOException("Could not remove stale file " + file);
+				}
+			}
+		}
+	}
+
+	private void writeStored(EntryWriter writer, ZipArchive.Entry entry, File target) throws IOException {
+		List<File> blobs = store.find(entry.getCrc(), entry.getSize());
+		if (!blobs.isEmpty()) {
+			// inflating without writing confirms the match, a crc alone is too weak to share files
+			String digest = DigestManifest.toHex(writer.hash(archive, entry));
+			for (File blob : blobs) {
+				if (digest.equals(ContentStore.getDigest(blob)) && store.materialize(blob, target)) {
+					return;
+				}
+			}
+		}
+
+		writer.write(archive, entry, target);
+		store.add(target, entry.getCrc(), entry.getSize(), DigestManifest.toHex(writer.getDigest()));
+	}
+
+	private boolean isUpToDate(ZipArchive.Entry entry, File innerFile) {
+		return (journal != null && journal.isCompleted(entry.getName(), entry.getSize(), entry.getCrc(), innerFile))
+				|| (installed != null
+						&& installed.isCompleted(entry.getName(), entry.getSize(), entry.getCrc(), innerFile));
+	}
+
+	private void extractEntry(ZipArchive.Entry entry) throws IOException {
+		long start = System.nanoTime();
+		EntryWriter writer = writers.poll();
+		if (writer == null) {
+			writer = new EntryWriter(bufferPool, progress);
+			// the store identifies contents by their digest
+			writer.setVerify(digests != null || store != null);
+			writer.setMetrics(metrics);
+			writer.setAllocator(allocator);
+			writer.setSync(journal != null);
+			writer.setOutput(output);
+		}
+		File target = new File(baseDir, entry.getName());
+		long offset = pack != null && pack.accepts(entry.getSize()) ? pack.reserve(entry.getName(), entry.getSize())
+				: -1;
+		try {
+			if (offset >= 0) {
+				writer.write(archive, entry, pack, offset);
+			} else {
+				// the directories of packed entries have been left out, unless the pack is full
+				directories.create(target.getParentFile());
+				if (store != null && store.isEnabled()) {
+					writeStored(writer, entry, target);
+				} else {
+					writer.write(archive, entry, target);
+				}
+			}
+			if (digests != null) {
+				digests.put(entry.getName(), writer.getDigest());
+			}
+		} finally {
+			writers.offer(writer);
+		}
+		if (metrics != null) {
+			metrics.addEntry(entry.getName(), entry.getCompressedSize(), entry.getSize(), System.nanoTime() - start);
+		}
+
+		if (fileListener != null && !failed && offset < 0) {
+			fileListener.onFileWritten(target);
+		}
+
+		if (journal != null && !failed) {
+			journal.markCompleted(entry.getName(), entry.getSize(), entry.getCrc());
+		}
+	}
+}
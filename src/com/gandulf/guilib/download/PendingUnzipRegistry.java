@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads which have to be extracted once the DownloadManager has finished them, together with their output
+ * directory and extraction options. Lookups are served from memory, every change is written through to a private
+ * preferences file so pending downloads survive the death of the process.
+ */
+public class PendingUnzipRegistry {
+
+	private static final String TAG = "Downloader";
+
+	private static final String PREFERENCES = "com.gandulf.guilib.download.pending";
+
+	private static PendingUnzipRegistry instance;
+
+	public static final class Entry {
+		private final String basePath;
+		private final UnzipOptions options;
+
+		public Entry(String basePath, UnzipOptions options) {
+			this.basePath = basePath;
+			this.options = options;
+		}
+
+		public String getBasePath() {
+			return basePath;
+		}
+
+		public UnzipOptions getOptions() {
+			return options;
+		}
+	}
+
+	private final SharedPreferences preferences;
+
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Downloads whose extraction has been started by this process, in memory only.
+	 */
+	private final Set<Long> claimed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	public static synchronized PendingUnzipRegistry getInstance(Context context) {
+		if (instance == null) {
+			instance = new PendingUnzipRegistry(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private PendingUnzipRegistry(Context context) {
+		preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+		for (Map.Entry<String, ?> stored : preferences.getAll().entrySet()) {
+			try {
+				// the extras of the start request of the service, see UnzipOptions.putExtras
+				Intent intent = Intent.parseUri((String) stored.getValue(), Intent.URI_INTENT_SCHEME);
+				String basePath = intent.getStringExtra(UnzipIntentService.INTENT_OUTPUT_URI);
+				if (basePath == null) {
+					throw new URISyntaxException(stored.getKey(), "No output directory");
+				}
+				entries.put(Long.valueOf(stored.getKey()), new Entry(basePath, UnzipOptions.fromIntent(intent)));
+			} catch (URISyntaxException | RuntimeException e) {
+				Log.w(TAG, "Dropping invalid pending download " + stored.getKey(), e);
+				preferences.edit().remove(stored.getKey()).apply();
+			}
+		}
+	}
+
+	public void add(long downloadId, Entry entry) {
+		entries.put(downloadId, entry);
+		Intent intent = new Intent();
+		intent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, entry.basePath);
+		entry.options.putExtras(intent);
+		preferences.edit().putString(Long.toString(downloadId), intent.toUri(Intent.URI_INTENT_SCHEME)).apply();
+	}
+
+	public boolean contains(long downloadId) {
+		return entries.containsKey(downloadId);
+	}
+
+	public Entry get(long downloadId) {
+		return entries.get(downloadId);
+	}
+
+	/**
+	 * Hands the entry to the caller which starts its extraction. The entry stays registered until the
+	 * {@link UnzipIntentService} has finished the job, if the process dies first the next reconcile starts it again.
+	 *
+	 * @return the entry or <code>null</code> if the download is not pending or its extraction has already been
+	 *         started by this process. Only one caller receives the entry, so concurrent receivers can use this to
+	 *         decide who handles the download.
+	 */
+	public Entry claim(long downloadId) {
+		Entry entry = entries.get(downloadId);
+		return entry != null && claimed.add(downloadId) ? entry : null;
+	}
+
+	/**
+	 * @return the removed entry or <code>null</code> if the download was not pending
+	 */
+	public Entry remove(long downloadId) {
+		Entry entry = entries.remove(downloadId);
+		claimed.remove(downloadId);
+		if (entry != null) {
+			preferences.edit().remove(Long.toString(downloadId)).apply();
+		}
+		return entry;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public long[] getDownloadIds() {
+		Long[] ids = entries.keySet().toArray(new Long[0]);
+		long[] result = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			result[i] = ids[i];
+		}
+		return result;
+	}
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file over several connections at once. The file is split into byte ranges which are fetched in parallel
+ * and written at their offset into the preallocated target. The progress of each range is kept in a state file next
+ * to the target, a download which has been interrupted continues with the missing bytes as long as the file has not
+ * changed on the server. Servers which do not support ranges are read over a single connection, so are files without
+ * a strong ETag or a modification date, their ranges could not be tied to one version of the file.
+ */
+class SegmentedDownload {
+
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+	private static final int TIMEOUT = 30 * 1000;
+	/**
+	 * The state file is written at most this often, the target is synced before.
+	 */
+	private static final long SAVE_INTERVAL = 1000;
+
+	private final URL url;
+	private final File target;
+	private final File stateFile;
+	private final int connections;
+
+	private BufferPool bufferPool = BufferPool.getDefault();
+
+	private ExtractionProgress progress;
+
+	private volatile boolean failed;
+
+	private long length = -1;
+	private String validator;
+	private List<Segment> segments;
+	private long lastSave;
+
+	private static class Segment {
+		final long start;
+		final long end;
+		volatile long done;
+
+		Segment(long start, long end, long done) {
+			this.start = start;
+			this.end = end;
+			this.done = done;
+		}
+
+		long position() {
+			return start + done;
+		}
+
+		boolean isComplete() {
+			return start + done >= end;
+		}
+	}
+
+	SegmentedDownload(URL url, File target, int connections) {
+		this.url = url;
+		this.target = target;
+		this.stateFile = getStateFile(target);
+		this.connections = Math.max(1, connections);
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Reports the received bytes, the total is set to the size of the file once it is known.
+	 */
+	public void setProgress(ExtractionProgress progress) {
+		this.progress = progress;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the size of the file or -1 if it has not been requested yet
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Downloads the file into the target. A failed download leaves the target and its state behind, calling this
+	 * again continues it.
+	 */
+	public void download() throws IOException, InterruptedException {
+		// a one byte range tells whether ranges are supported and the size of the file in one request
+		HttpURLConnection probe = open("bytes=0-0", null);
+		int code = probe.getResponseCode();
+		if (code == HttpURLConnection.HTTP_OK) {
+			length = probe.getContentLength();
+			try {
+				downloadSingle(probe);
+			} finally {
+				probe.disconnect();
+			}
+			return;
+		} else if (code != HttpURLConnection.HTTP_PARTIAL) {
+			probe.disconnect();
+			throw new IOException("Download of " + url + " failed: " + code + " " + probe.getResponseMessage());
+		}
+
+		length = parseTotal(probe.getHeaderField("Content-Range"));
+		String etag = probe.getHeaderField("ETag");
+		validator = etag != null && !etag.startsWith("W/") ? etag : probe.getHeaderField("Last-Modified");
+		probe.disconnect();
+		if (length < 0) {
+			throw new IOException("Download of " + url + " failed: unknown size");
+		}
+
+		if (validator == null) {
+			// without If-Range the segments could be stitched together from two versions of the file
+			HttpURLConnection connection = open(null, null);
+			try {
+				code = connection.getResponseCode();
+				if (code != HttpURLConnection.HTTP_OK) {
+					throw new IOException("Download of " + url + " failed: " + code + " "
+							+ connection.getResponseMessage());
+				}
+				downloadSingle(connection);
+			} finally {
+				connection.disconnect();
+			}
+			return;
+		}
+
+		if (!loadState()) {
+			segments = split(length, connections);
+		}
+		if (progress != null) {
+			progress.setTotal(length);
+			long done = 0;
+			for (Segment segment : segments) {
+				done += segment.done;
+			}
+			progress.skip(done);
+		}
+
+		RandomAccessFile file = new RandomAccessFile(target, "rw");
+		try {
+			if (file.length() != length) {
+				// reserves the space up front, the segments are written at their offset
+				file.setLength(length);
+			}
+			downloadSegments(file.getChannel());
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+		stateFile.delete();
+	}
+
+	private void downloadSegments(final FileChannel channel) throws IOException, InterruptedException {
+		List<Segment> pending = new ArrayList<>();
+		for (Segment segment : segments) {
+			if (!segment.isComplete()) {
+				pending.add(segment);
+			}
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(pending.size());
+		ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+		try {
+			for (final Segment segment : pending) {
+				completion.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							fetch(segment, channel);
+						} catch (Exception e) {
+							failed = true;
+							throw e;
+						}
+						return null;
+					}
+				});
+			}
+
+			ExecutionException error = null;
+			for (int i = 0; i < pending.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+			if (error != null) {
+				Throwable cause = error.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException(cause);
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+			throw e;
+		} finally {
+			// workers stop on the failed flag, interrupting them would close the shared channel
+			executor.shutdown();
+			// the caller closes the channel when this returns, no worker may write to it afterwards
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (failed) {
+				try {
+					saveState(channel, true);
+				} catch (IOException e) {
+					// the failure of the download is thrown, an older state only costs bytes downloaded again
+				}
+			}
+		}
+	}
+
+	private void fetch(Segment segment, FileChannel channel) throws IOException {
+		HttpURLConnection connection = open("bytes=" + segment.position() + "-" + (segment.end - 1), validator);
+		try {
+			int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_OK) {
+				throw new IOException("Download of " + url + " failed: file changed on the server");
+			} else if (code != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("Download of " + url + " failed: " + code + " "
+						+ connection.getResponseMessage());
+			}
+			String contentRange = connection.getHeaderField("Content-Range");
+			if (parseStart(contentRange) != segment.position() || parseTotal(contentRange) != length) {
+				throw new IOException("Download of " + url + " failed: requested bytes " + segment.position() + "-"
+						+ (segment.end - 1) + "/" + length + " but received " + contentRange);
+			}
+
+			ByteBuffer buffer = bufferPool.acquire();
+			InputStream in = connection.getInputStream();
+			try {
+				byte[] data = buffer.array();
+				while (!segment.isComplete() && !failed) {
+					int count = in.read(data, 0, (int) Math.min(data.length, segment.end - segment.position()));
+					if (count < 0) {
+						throw new EOFException("Connection closed at " + segment.position() + " of " + url);
+					}
+					buffer.clear();
+					buffer.limit(count);
+					long position = segment.position();
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					segment.done += count;
+					if (progress != null) {
+						progress.add(count);
+					}
+					saveState(channel, false);
+				}
+			} finally {
+				in.close();
+				bufferPool.release(buffer);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void downloadSingle(HttpURLConnection connection) throws IOException {
+		stateFile.delete();
+		if (progress != null) {
+			progress.setTotal(length);
+		}
+
+		ByteBuffer buffer = bufferPool.acquire();
+		InputStream in = connection.getInputStream();
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			byte[] data = buffer.array();
+			long received = 0;
+			int count;
+			while ((count = in.read(data)) != -1) {
+				out.write(data, 0, count);
+				received += count;
+				if (progress != null) {
+					progress.add(count);
+				}
+			}
+			if (length >= 0 && received < length) {
+				throw new EOFException("Connection closed after " + received + " of " + length + " bytes");
+			}
+		} finally {
+			out.close();
+			in.close();
+			bufferPool.release(buffer);
+		}
+	}
+
+	private HttpURLConnection open(String range, String ifRange) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setUseCaches(false);
+		// ranges of a compressed transfer would not be offsets into the file
+		connection.setRequestProperty("Accept-Encoding", "identity");
+		if (range != null) {
+			connection.setRequestProperty("Range", range);
+		}
+		if (ifRange != null) {
+			connection.setRequestProperty("If-Range", ifRange);
+		}
+		return connection;
+	}
+
+	private static List<Segment> split(long length, int connections) {
+		int count = (int) Math.max(1, Math.min(connections, length / MIN_SEGMENT_SIZE));
+		List<Segment> segments = new ArrayList<>(count);
+		long size = length / count;
+		for (int i = 0; i < count; i++) {
+			long start = i * size;
+			segments.add(new Segment(start, i == count - 1 ? length : start + size, 0));
+		}
+		return segments;
+	}
+
+	/**
+	 * Removes the progress of an interrupted download of <code>target</code>, the next download starts over.
+	 */
+	static void deleteState(File target) {
+		getStateFile(target).delete();
+	}
+
+	private static File getStateFile(File target) {
+		return new File(target.getPath() + ".segments");
+	}
+
+	/**
+	 * @return the first byte of a <code>bytes 100-199/1234</code> content range or -1 if it is not valid
+	 */
+	static long parseStart(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = contentRange.indexOf('-');
+		try {
+			return dash >= 0 ? Long.parseLong(contentRange.substring("bytes ".length(), dash).trim()) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the total of a <code>bytes 0-0/1234</code> content range or -1 if it is unknown
+	 */
+	static long parseTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		try {
+			return slash >= 0 ? Long.parseLong(contentRange.substring(slash + 1).trim()) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The state is only used if it belongs to the same version of the file and the target still has its size. Format:
+	 * <code>length \t validator</code> followed by one <code>start \t end \t done</code> line per segment.
+	 */
+	private boolean loadState() {
+		if (!stateFile.isFile() || target.length() != length) {
+			return false;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile),
+					ExtractionManifest.UTF8));
+			try {
+				String header = reader.readLine();
+				if (header == null || !header.equals(length + "\t" + (validator != null ? validator : ""))) {
+					return false;
+				}
+				List<Segment> loaded = new ArrayList<>();
+				long next = 0;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] values = line.split("\t");
+					Segment segment = new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+							Long.parseLong(values[2]));
+					if (segment.start != next || segment.end <= segment.start || segment.done < 0
+							|| segment.done > segment.end - segment.start) {
+						return false;
+					}
+					next = segment.end;
+					loaded.add(segment);
+				}
+				if (next != length) {
+					return false;
+				}
+				segments = loaded;
+				return true;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Syncs the target and records the progress of all segments, the recorded bytes are always on disk.
+	 */
+	private void saveState(FileChannel channel, boolean force) throws IOException {
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (!force && now - lastSave < SAVE_INTERVAL) {
+				return;
+			}
+			lastSave = now;
+
+			long[] done = new long[segments.size()];
+			for (int i = 0; i < done.length; i++) {
+				done[i] = segments.get(i).done;
+			}
+			channel.force(false);
+
+			File tmp = new File(stateFile.getPath() + ".tmp");
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+					ExtractionManifest.UTF8));
+			try {
+				writer.write(length + "\t" + (validator != null ? validator : "") + "\n");
+				for (int i = 0; i < done.length; i++) {
+					Segment segment = segments.get(i);
+					writer.write(segment.start + "\t" + segment.end + "\t" + done[i] + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			if (!tmp.renameTo(stateFile)) {
+				tmp.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a zip archive sequentially from a stream, entry by entry in the order they are stored. Works on any
+ * stream, a downloaded file as well as a network connection which is still receiving the archive.
+ */
+class StreamExtractor {
+
+	interface Callback {
+		/**
+		 * Called before the entry is extracted.
+		 */
+		void onEntry(ZipEntry entry);
+	}
+
+	private final File baseDir;
+
+	private BufferPool bufferPool = BufferPool.getDefault();
+
+	private ExtractionProgress progress;
+
+	private ExtractedFileListener fileListener;
+
+	private ExtractionManifest journal;
+
+	private ExtractionOutput output;
+
+	private DigestManifest digests;
+
+	private ExtractionMetrics metrics;
+
+	private EntryWriter.Allocator allocator;
+
+	private PackWriter pack;
+
+	private ZipIndex index;
+
+	private final DirectoryCache directories = new DirectoryCache();
+
+	StreamExtractor(File baseDir) {
+		this.baseDir = baseDir;
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Receives the uncompressed bytes written.
+	 */
+	public void setProgress(ExtractionProgress progress) {
+		this.progress = progress;
+	}
+
+	public void setFileListener(ExtractedFileListener fileListener) {
+		this.fileListener = fileListener;
+	}
+
+	/**
+	 * Entries recorded in the journal are skipped, newly extracted entries are added to it.
+	 */
+	public void setJournal(ExtractionManifest journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Verifies every written entry against its crc and records its SHA-256 digest, a mismatch fails the extraction.
+	 */
+	public void setDigests(DigestManifest digests) {
+		this.digests = digests;
+	}
+
+	public void setMetrics(ExtractionMetrics metrics) {
+		this.metrics = metrics;
+		directories.setMetrics(metrics);
+	}
+
+	/**
+	 * Preallocates large files whose size is known from their local header or the central directory.
+	 */
+	public void setAllocator(EntryWriter.Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Small entries whose size is known from their local header or the {@link #setIndex(ZipIndex) central directory}
+	 * are written into the pack instead of files.
+	 */
+	public void setPack(PackWriter pack) {
+		this.pack = pack;
+	}
+
+	/**
+	 * Writes the files into the output instead of the file system.
+	 */
+	public void setOutput(ExtractionOutput output) {
+		this.output = output;
+	}
+
+	/**
+	 * The central directory of the archive, if it could be read. Entries written with a data descriptor have no size
+	 * and crc in their local header, they are looked up here instead.
+	 */
+	public void setIndex(ZipIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Creates the directory tree up front if the central directory of the archive could be read, otherwise
+	 * directories are created as the entries arrive.
+	 */
+	public void createDirectories(ZipIndex index) throws IOException {
+		directories.createAll(baseDir, index, pack);
+	}
+
+	public void extract(InputStream in, Callback callback) throws IOException {
+		// ZipInputStream reads its source in tiny chunks, buffer them to keep the number of reads low
+		ZipInputStream inputStream = new ZipInputStream(new BufferedInputStream(in, bufferPool.getBufferSize()));
+		EntryWriter writer = new EntryWriter(bufferPool, progress);
+		writer.setVerify(digests != null);
+		writer.setMetrics(metrics);
+		writer.setAllocator(allocator);
+		// the manifest of a pipelined install is saved once at the end, only a journal is read after a crash
+		writer.setSync(journal instanceof ExtractionJournal);
+		writer.setOutput(output);
+		try {
+			// Loop through all the files and folders
+			for (ZipEntry entry = inputStream.getNextEntry(); entry != null; entry = inputStream.getNextEntry()) {
+
+				if (callback != null) {
+					callback.onEntry(entry);
+				}
+
+				// the central directory is not read here, the local header has to be checked on its own
+				ZipIndex.checkName(entry.getName());
+				File innerFile = new File(baseDir, entry.getName());
+				long size = entry.isDirectory() ? -1 : getSize(entry);
+				// the pack is built anew, its entries are never skipped
+				long offset = pack != null && pack.accepts(size) ? pack.reserve(entry.getName(), size) : -1;
+
+				// Check if it is a folder
+				if (entry.isDirectory()) {
+					directories.create(innerFile);
+				} else if (offset < 0 && journal != null && isCompleted(entry, innerFile)) {
+					// already extracted by an earlier attempt
+					if (progress != null) {
+						progress.skip(size);
+					}
+					if (metrics != null) {
+						metrics.addSkippedEntry();
+					}
+				} else {
+					long start = System.nanoTime();
+					if (offset >= 0) {
+						writer.write(inputStream, pack, entry.getName(), offset, size);
+					} else {
+						directories.create(innerFile.getParentFile());
+						writer.write(inputStream, innerFile, size);
+					}
+					if (digests != null) {
+						digests.put(entry.getName(), writer.getDigest());
+					}
+					if (fileListener != null && offset < 0) {
+						fileListener.onFileWritten(innerFile);
+					}
+
+					// crc and size are known once the entry has been read completely
+					if (journal != null) {
+						journal.markCompleted(entry.getName(), entry.getSize(), entry.getCrc());
+					}
+					if (metrics != null) {
+						metrics.addEntry(entry.getName(), entry.getCompressedSize(), entry.getSize(),
+								System.nanoTime() - start);
+					}
+				}
+
+				// Close the current entry
+				inputStream.closeEntry();
+			}
+		} finally {
+			writer.close();
+			inputStream.close();
+		}
+	}
+
+	private boolean isCompleted(ZipEntry entry, File innerFile) {
+		long size = entry.getSize();
+		long crc = entry.getCrc();
+		int i = (size < 0 || crc < 0) && index != null ? index.indexOf(entry.getName()) : -1;
+		if (i >= 0) {
+			size = index.getSize(i);
+			crc = index.getCrc(i);
+		}
+		return journal.isCompleted(entry.getName(), size, crc, innerFile);
+	}
+
+	/**
+	 * @return the uncompressed size from the local header or the central directory, -1 if neither has it
+	 */
+	private long getSize(ZipEntry entry) {
+		if (entry.getSize() >= 0 || index == null) {
+			return entry.getSize();
+		}
+		int i = index.indexOf(entry.getName());
+		return i >= 0 ? index.getSize(i) : -1;
+	}
+}
@@ -1,33 +1,71 @@
 package com.gandulf.guilib.download;
 
 import android.app.DownloadManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.StatFs;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 
 import com.gandulf.guilib.R;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class UnzipIntentService extends IntentService {
+/**
+ * Extracts downloaded archives. Each start request is one job, up to {@link #setMaxConcurrentJobs(int)} jobs run at
+ * the same time and waiting jobs are started by their {@link #INTENT_PRIORITY}. Every job reports its own
+ * {@link #ACTION_UNZIP_COMPLETE} broadcast and shows its own notification.
+ */
+public class UnzipIntentService extends Service {
 
     private static final String TAG="Downloader";
 
 	public static final String INTENT_DOWNLOAD_ID = "downloadId";
 	public static final String INTENT_OUTPUT_URI = "outputURI";
+	public static final String INTENT_DOWNLOAD_URL = "downloadUrl";
+	public static final String INTENT_PARALLEL = "parallel";
+	public static final String INTENT_UPDATE = "update";
+	public static final String INTENT_PRIORITY = "priority";
+	public static final String INTENT_CONNECTIONS = "connections";
+	public static final String INTENT_VERIFY = "verify";
+	public static final String INTENT_DEDUP = "dedup";
+	public static final String INTENT_LAZY = "lazy";
+	/**
+	 * Small files are packed into one file read with {@link PackFile} instead of being written one by one.
+	 */
+	public static final String INTENT_PACK = "pack";
+	/**
+	 * The job shows no notification of its own, it is a member of a {@link DownloadBatch} which shows one for all.
+	 */
+	public static final String INTENT_SILENT = "silent";
 
 	public static final int UNZIP_ID = 1;
 
@@ -37,17 +75,328 @@ public class UnzipIntentService extends IntentService {
 	public static final int RESULT_OK = 1;
 	public static final int RESULT_ERROR = 2;
 	public static final int RESULT_CANCELED = 3;
+	/**
+	 * The installed package is up to date, it has neither been downloaded nor extracted again.
+	 */
+	public static final int RESULT_UNCHANGED = 4;
+	/**
+	 * The job has been paused by {@link #pause(long)}, {@link #resume(Context, long)} continues it.
+	 */
+	public static final int RESULT_PAUSED = 5;
+	/**
+	 * The output volume has not enough free space for the package, the job failed before writing anything.
+	 */
+	public static final int RESULT_NO_SPACE = 6;
+	/**
+	 * The extracted files would not fit on the output volume, the archive has been kept instead like a lazy install.
+	 * Its files are read with {@link PackageArchive}.
+	 */
+	public static final int RESULT_LAZY = 7;
 
-	public UnzipIntentService() {
-		super("UnzipIntentService");
+	/**
+	 * Bundle with the summary of the job's {@link ExtractionMetrics}, added to {@link #ACTION_UNZIP_COMPLETE} if the
+	 * job got as far as extracting. Its keys are the <code>METRICS_*</code> constants.
+	 */
+	public static final String INTENT_METRICS = "metrics";
+	public static final String METRICS_BYTES_IN = "bytesIn";
+	public static final String METRICS_BYTES_OUT = "bytesOut";
+	public static final String METRICS_ENTRIES = "entries";
+	public static final String METRICS_SKIPPED_ENTRIES = "skippedEntries";
+	public static final String METRICS_ELAPSED_MILLIS = "elapsedMillis";
+	public static final String METRICS_READ_MILLIS = "readMillis";
+	public static final String METRICS_INFLATE_MILLIS = "inflateMillis";
+	public static final String METRICS_WRITE_MILLIS = "writeMillis";
+	public static final String METRICS_MKDIRS_MILLIS = "mkdirsMillis";
+	public static final String METRICS_ENTRIES_PER_SECOND = "entriesPerSecond";
+	public static final String METRICS_SLOWEST_ENTRIES = "slowestEntries";
+	public static final String METRICS_SLOWEST_ENTRY_MILLIS = "slowestEntryMillis";
+
+	/**
+	 * Directory of the content addressed store inside the output directory, hard links can not cross file systems.
+	 */
+	private static final String STORE_DIR = ".store";
+
+	/**
+	 * Lazy installs copy the archive in chunks of this size to report their progress.
+	 */
+	private static final long COPY_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Space left free on the output volume by an install, for its manifest, journal and everything else running.
+	 */
+	private static final long MIN_FREE_SPACE = 16 * 1024 * 1024;
+
+	private static volatile int maxConcurrentJobs = ExtractionScheduler.DEFAULT_MAX_CONCURRENT;
+
+	private static volatile ExtractionMetrics.Listener metricsListener;
+
+	private ExtractionScheduler scheduler;
+
+	/**
+	 * Keys of the jobs which are waiting or running, a download which is delivered again while its job is still
+	 * scheduled is not extracted a second time.
+	 */
+	private final Set<String> jobs = new HashSet<>();
+
+	private int lastStartId;
+
+	/**
+	 * Stop requests of the waiting and running jobs by job key.
+	 */
+	private static final ConcurrentHashMap<String, ExtractionControl> controls = new ConcurrentHashMap<>();
+
+	/**
+	 * Start requests of the paused jobs by download id, in memory only. A paused job leaves the
+	 * {@link PendingUnzipRegistry} until it is resumed, after a restart of the process a paused download has to be
+	 * started again, it continues from its journal.
+	 */
+	private static final ConcurrentHashMap<Long, Intent> pausedJobs = new ConcurrentHashMap<>();
+
+	/**
+	 * Marks a start request of a paused job which is resumed only to remove its partial output.
+	 */
+	private static final String INTENT_CANCELED = "canceled";
+
+	/**
+	 * Limits the number of archives extracted at the same time, takes effect for jobs which have not started yet.
+	 */
+	public static void setMaxConcurrentJobs(int maxJobs) {
+		maxConcurrentJobs = Math.max(1, maxJobs);
+	}
+
+	/**
+	 * Pauses the waiting or running job of the download. The copy loops stop after their current buffer, the entries
+	 * which have been extracted completely are kept and skipped when the job is resumed.
+	 *
+	 * @return <code>false</code> if the service has no job for the download
+	 */
+	public static boolean pause(long downloadId) {
+		ExtractionControl control = findControl(downloadId);
+		if (control == null) {
+			return false;
+		}
+		control.pause();
+		return true;
+	}
+
+	/**
+	 * Starts a job paused by {@link #pause(long)} again.
+	 *
+	 * @return <code>false</code> if the download has not been paused
+	 */
+	public static boolean resume(Context context, long downloadId) {
+		Intent intent = pausedJobs.remove(downloadId);
+		if (intent == null) {
+			return false;
+		}
+		if (downloadId >= 0) {
+			// recovered like any other pending download if the process dies while it runs
+			PendingUnzipRegistry registry = PendingUnzipRegistry.getInstance(context);
+			registry.add(downloadId, new PendingUnzipRegistry.Entry(intent.getStringExtra(INTENT_OUTPUT_URI),
+					UnzipOptions.fromIntent(intent)));
+			registry.claim(downloadId);
+		}
+		context.startService(intent);
+		return true;
+	}
+
+	/**
+	 * Cancels the waiting, running or paused job of the download. It stops after its current buffer and removes the
+	 * files it has added to the output directory, together with its journal and a partially downloaded archive. Files
+	 * of an installed package which have already been replaced stay, the next update writes them again.
+	 *
+	 * @return <code>false</code> if the service has no job for the download
+	 */
+	public static boolean cancel(Context context, long downloadId) {
+		ExtractionControl control = findControl(downloadId);
+		if (control != null) {
+			control.cancel();
+			return true;
+		}
+		Intent intent = pausedJobs.remove(downloadId);
+		if (intent != null) {
+			// the paused job stops at its first buffer and cleans up like a running one
+			intent.putExtra(INTENT_CANCELED, true);
+			context.startService(intent);
+			return true;
+		}
+		return false;
+	}
+
+	private static ExtractionControl findControl(long downloadId) {
+		if (downloadId == -1) {
+			// streaming jobs have no id
+			return null;
+		}
+		for (ExtractionControl control : controls.values()) {
+			if (control.getDownloadId() == downloadId) {
+				return control;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the metrics of the running extraction of the download or <code>null</code> if it is not extracting
+	 */
+	static ExtractionMetrics getMetrics(long downloadId) {
+		ExtractionControl control = findControl(downloadId);
+		return control != null ? control.getMetrics() : null;
+	}
+
+	/**
+	 * @return the control of the service job, jobs started by calling <code>unzip</code> directly can not be stopped
+	 */
+	private static ExtractionControl getControl(String key) {
+		ExtractionControl control = controls.get(key);
+		return control != null ? control : new ExtractionControl(-1);
+	}
+
+	/**
+	 * Paused and canceled jobs stop with an exception from their copy loop, the control tells them from failures.
+	 */
+	private static int getResult(ExtractionControl control, Exception e) {
+		if (control.isCanceled()) {
+			Log.d(TAG, "Extraction canceled");
+			return RESULT_CANCELED;
+		} else if (control.isPaused()) {
+			Log.d(TAG, "Extraction paused");
+			return RESULT_PAUSED;
+		}
+		Log.e(TAG, e.getLocalizedMessage(), e);
+		return RESULT_ERROR;
+	}
+
+	/**
+	 * Removes the files a canceled job has added to the output directory and its journal. Files which belong to the
+	 * installed package are kept.
+	 */
+	private static void discardJournal(File journalFile, File baseDir, String uri) {
+		ArchiveExtractor extractor = new ArchiveExtractor(baseDir, getPackageName(uri));
+		extractor.setJournalFile(journalFile);
+		try {
+			extractor.discard();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not remove the output of a canceled extraction", e);
+		}
+	}
+
+	public static int getMaxConcurrentJobs() {
+		return maxConcurrentJobs;
+	}
+
+	/**
+	 * Receives the metrics of every extraction, may be <code>null</code>.
+	 */
+	public static void setMetricsListener(ExtractionMetrics.Listener listener) {
+		metricsListener = listener;
+	}
+
+	private static void reportMetrics(ExtractionControl control, String url, int result) {
+		ExtractionMetrics metrics = control.getMetrics();
+		if (metrics == null) {
+			return;
+		}
+		metrics.finish();
+		Log.d(TAG, "Extraction of " + (url != null ? url : control.getDownloadId()) + ": " + metrics);
+		ExtractionMetrics.Listener listener = metricsListener;
+		if (listener != null) {
+			listener.onExtractionFinished(control.getDownloadId(), url, result, metrics);
+		}
+	}
+
+	private static Bundle toBundle(ExtractionMetrics metrics) {
+		Bundle bundle = new Bundle();
+		bundle.putLong(METRICS_BYTES_IN, metrics.getBytesIn());
+		bundle.putLong(METRICS_BYTES_OUT, metrics.getBytesOut());
+		bundle.putLong(METRICS_ENTRIES, metrics.getEntries());
+		bundle.putLong(METRICS_SKIPPED_ENTRIES, metrics.getSkippedEntries());
+		bundle.putLong(METRICS_ELAPSED_MILLIS, metrics.getElapsedMillis());
+		bundle.putLong(METRICS_READ_MILLIS, metrics.getReadMillis());
+		bundle.putLong(METRICS_INFLATE_MILLIS, metrics.getInflateMillis());
+		bundle.putLong(METRICS_WRITE_MILLIS, metrics.getWriteMillis());
+		bundle.putLong(METRICS_MKDIRS_MILLIS, metrics.getMkdirsMillis());
+		bundle.putDouble(METRICS_ENTRIES_PER_SECOND, metrics.getEntriesPerSecond());
+		bundle.putStringArray(METRICS_SLOWEST_ENTRIES, metrics.getSlowestEntries());
+		bundle.putLongArray(METRICS_SLOWEST_ENTRY_MILLIS, metrics.getSlowestEntryMillis());
+		return bundle;
+	}
+
+	static File getJournalFile(Context context, long downloadId) {
+		return getJournalFile(context, Long.toString(downloadId));
+	}
+
+	static File getJournalFile(Context context, String name) {
+		return new File(context.getDir("unzip", Context.MODE_PRIVATE), name + ".journal");
+	}
+
+	/**
+	 * Archives fetched by a {@link SegmentedDownload} are kept in the cache until they have been extracted, the name
+	 * is stable so an interrupted download is continued.
+	 */
+	static File getDownloadFile(Context context, String url) {
+		File dir = context.getExternalCacheDir();
+		if (dir == null) {
+			dir = context.getCacheDir();
+		}
+		String name = Uri.parse(url).getLastPathSegment();
+		return new File(dir, Integer.toHexString(url.hashCode()) + "-" + (name != null ? name : "package"));
+	}
+
+	/**
+	 * The manifest of an installed package lives next to its files and is named after the downloaded archive, so
+	 * several packages can share one output directory.
+	 */
+	static File getManifestFile(File baseDir, String downloadUri) {
+		return ArchiveExtractor.getManifestFile(baseDir, getPackageName(downloadUri));
+	}
+
+	/**
+	 * The small files of a package installed with {@link #INTENT_PACK}.
+	 */
+	static File getPackFile(File baseDir, String downloadUri) {
+		return ArchiveExtractor.getPackFile(baseDir, getPackageName(downloadUri));
+	}
+
+	/**
+	 * The archive of a lazily installed package, its files are read with {@link PackageArchive}.
+	 */
+	static File getArchiveFile(File baseDir, String downloadUri) {
+		return new File(baseDir, "." + getPackageName(downloadUri) + ".zip");
+	}
+
+	/**
+	 * Files of a lazily installed package which have been opened, bounded by {@link PackageArchive}.
+	 */
+	static File getArchiveCacheDir(File baseDir, String downloadUri) {
+		return new File(baseDir, "." + getPackageName(downloadUri) + ".cache");
+	}
+
+	private static String getPackageName(String downloadUri) {
+		String name = downloadUri != null ? Uri.parse(downloadUri).getLastPathSegment() : null;
+		if (name == null || name.length() == 0) {
+			name = "package";
+		}
+		return name;
 	}
 
 	public static int unzip(Context context, long downloadId, Uri outputURI) {
+		return unzip(context, downloadId, outputURI, UnzipOptions.DEFAULT);
+	}
+
+	/**
+	 * Extracts an archive downloaded by the DownloadManager, continuing an earlier attempt recorded in the journal.
+	 */
+	public static int unzip(Context context, long downloadId, Uri outputURI, UnzipOptions options) {
 
 		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(), 0);
 
+		String key = Long.toString(downloadId);
+		String tag = getNotificationTag(key);
+		ExtractionControl control = getControl(key);
+
 		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-		NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+		NotificationManagerCompat notificationManager = getNotificationManager(context, control);
 
 		NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context);
 		notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
@@ -64,178 +413,745 @@ public class UnzipIntentService extends IntentService {
 				baseDir.mkdirs();
 			}
 
-			ZipInputStream inputStream = null;
+			String uri = null;
 			try {
-
 				DownloadManager.Query q = new DownloadManager.Query();
 				q.setFilterById(downloadId);
 				Cursor c = downloadManager.query(q);
 				String title = "Unpacking ...";
-				int totalSize = 0;
 				if (c.moveToFirst()) {
 					int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
 					if (status == DownloadManager.STATUS_SUCCESSFUL) {
 						// process download
 						title = c.getString(c.getColumnIndex(DownloadManager.COLUMN_TITLE));
-
-						totalSize = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+						uri = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
 						// get other required data by changing the constant passed to getColumnIndex
 					}
 				}
 				c.close();
+				// stopped while it was waiting
+				control.checkpoint();
 
-				// Open the ZipInputStream
 				ParcelFileDescriptor pfd = downloadManager.openDownloadedFile(downloadId);
+				FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+				NotificationProgress progress = new NotificationProgress(context, title, tag, notificationManager,
+						notificationBuilder);
+				progress.setControl(control);
+				File journalFile = getJournalFile(context, downloadId);
+				// the DownloadManager keeps its file, the archive is always copied
+				int strategy = checkSpace(channel, uri, journalFile, baseDir, options, channel.size());
+				if (strategy == RESULT_NO_SPACE) {
+					result = RESULT_NO_SPACE;
+				} else if (strategy == RESULT_LAZY) {
+					keepArchive(channel, uri, baseDir, progress);
+					result = options.isLazy() ? RESULT_OK : RESULT_LAZY;
+				} else {
+					result = extract(context, channel, uri, journalFile, baseDir, options, control, progress);
+				}
+			} catch (Exception e) {
+				result = getResult(control, e);
+				if (result == RESULT_CANCELED) {
+					discardJournal(getJournalFile(context, downloadId), baseDir, uri);
+				}
+			}
+			reportMetrics(control, uri, result);
 
-				inputStream = new ZipInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
-				int bitsread = 0;
-				// Loop through all the files and folders
-				for (ZipEntry entry = inputStream.getNextEntry(); entry != null; entry = inputStream.getNextEntry()) {
-
-					bitsread += entry.getCompressedSize();
-
-					notificationBuilder.setContentTitle(title);
-					notificationBuilder.setContentText(entry.getName());
-					notificationBuilder.setProgress(totalSize, bitsread, true);
-
-					notificationManager.notify(UNZIP_ID, notificationBuilder.build());
-
-					Log.d(TAG, "Extracting: " + entry.getName() + "...");
-
-					File innerFile = new File(baseDir, entry.getName());
-					// if (innerFile.exists()) {
-					// innerFile.delete();
-					// }
-
-					// Check if it is a folder
-					if (entry.isDirectory()) {
-						// Its a folder, create that folder
-						innerFile.mkdirs();
-					} else {
-						// Create a file output stream
-						BufferedOutputStream bufferedOutputStream = null;
-						try {
-							if (!innerFile.getParentFile().canWrite()) {
-								result = RESULT_ERROR;
-								break;
-							}
-							FileOutputStream outputStream = new FileOutputStream(innerFile.getAbsolutePath());
-							final int BUFFER = 2048;
+		} else {
+			result = RESULT_CANCELED;
+		}
 
-							// Buffer the output to the file
-							bufferedOutputStream = new BufferedOutputStream(outputStream, BUFFER);
+		notifyResult(context, result, tag, notificationManager, notificationBuilder);
 
-							// Write the contents
-							int count = 0;
-							byte[] data = new byte[BUFFER];
-							while ((count = inputStream.read(data, 0, BUFFER)) != -1) {
-								bufferedOutputStream.write(data, 0, count);
-							}
+		return result;
+	}
+
+	/**
+	 * Extracts a downloaded archive into <code>baseDir</code> with an {@link ArchiveExtractor}, continuing an earlier
+	 * attempt recorded in the journal.
+	 *
+	 * @param uri
+	 *            the url the archive has been downloaded from, it names the manifest of the install
+	 */
+	private static int extract(Context context, FileChannel channel, String uri, File journalFile, File baseDir,
+			UnzipOptions options, ExtractionControl control, NotificationProgress progress)
+			throws IOException, InterruptedException {
+		ArchiveExtractor extractor = new ArchiveExtractor(baseDir, getPackageName(uri));
+		extractor.setJournalFile(journalFile);
+		if (journalFile.length() > 0) {
+			Log.d(TAG, "Resuming extraction of " + uri);
+		}
+		// concurrent jobs share the cores instead of each starting a worker per core
+		extractor.setThreads(options.isParallel()
+				? Math.max(1, Runtime.getRuntime().availableProcessors() / maxConcurrentJobs) : 0);
+		extractor.setUpdate(options.isUpdate());
+		extractor.setVerify(options.isVerify());
+		extractor.setPackThreshold(options.isPack() ? PackWriter.DEFAULT_THRESHOLD : 0);
+		if (options.isDedup() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			extractor.setContentStore(new ContentStore(new File(baseDir, STORE_DIR), new OsLinks()));
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			extractor.setAllocator(new OsAllocator());
+		}
+		extractor.setControl(control);
+		extractor.setProgress(progress);
+
+		MediaScanQueue scanner = new MediaScanQueue(context.getApplicationContext());
+		extractor.setFileListener(scanner);
+		try {
+			extractor.extract(channel);
+		} finally {
+			scanner.finish();
+		}
+		// a lazy install of the same package has been replaced
+		deleteArchive(baseDir, uri);
+		return RESULT_OK;
+	}
+
+	/**
+	 * Downloads the archive at <code>url</code> over several connections into the cache and extracts it from there.
+	 * An interrupted download is continued by the next attempt, the archive is deleted once it has been extracted. A
+	 * {@link UnzipOptions#isLazy() lazy} install moves the archive into the output directory instead.
+	 *
+	 * @param connections
+	 *            number of byte ranges fetched at the same time
+	 */
+	public static int unzip(Context context, String url, Uri outputURI, int connections, UnzipOptions options) {
 
-							// Flush and close the buffers
-							bufferedOutputStream.flush();
-							bufferedOutputStream.close();
+		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(), 0);
+
+		String tag = getNotificationTag(url);
+		ExtractionControl control = getControl(url);
+
+		NotificationManagerCompat notificationManager = getNotificationManager(context, control);
+
+		NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context);
+		notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
+		notificationBuilder.setContentTitle("Downloading package");
+		notificationBuilder.setWhen(System.currentTimeMillis());
+		notificationBuilder.setContentIntent(contentIntent);
+
+		int result = RESULT_OK;
+		if (outputURI != null && url != null) {
+			File baseDir = new File(outputURI.getPath());
+			if (!baseDir.exists()) {
+				baseDir.mkdirs();
+			}
+
+			File archive = getDownloadFile(context, url);
+			try {
+				control.checkpoint();
+				String title = Uri.parse(url).getLastPathSegment();
+				SegmentedDownload download = new SegmentedDownload(new URL(url), archive, connections);
+				NotificationProgress downloadProgress = new NotificationProgress(context, title, tag,
+						notificationManager, notificationBuilder);
+				downloadProgress.setControl(control);
+				download.setProgress(downloadProgress);
+				download.download();
+				downloadProgress.finish();
 
-						} finally {
-							if (bufferedOutputStream != null)
-								bufferedOutputStream.close();
+				NotificationProgress progress = new NotificationProgress(context, title, tag, notificationManager,
+						notificationBuilder);
+				progress.setControl(control);
+				if (options.isLazy() && moveArchive(archive, url, baseDir)) {
+					result = RESULT_OK;
+				} else {
+					FileChannel channel = new RandomAccessFile(archive, "r").getChannel();
+					try {
+						File journalFile = getJournalFile(context, archive.getName());
+						// renaming needs no space, but the cache may be on another file system
+						int strategy = checkSpace(channel, url, journalFile, baseDir, options, archive.length());
+						if (strategy == RESULT_NO_SPACE) {
+							result = RESULT_NO_SPACE;
+						} else if (strategy == RESULT_LAZY) {
+							if (options.isLazy() || !moveArchive(archive, url, baseDir)) {
+								keepArchive(channel, url, baseDir, progress);
+							}
+							result = options.isLazy() ? RESULT_OK : RESULT_LAZY;
+						} else {
+							result = extract(context, channel, url, journalFile, baseDir, options, control, progress);
 						}
+					} finally {
+						// most strategies close it themselves, closing it again does nothing
+						channel.close();
 					}
-
-					// Close the current entry
-					inputStream.closeEntry();
 				}
-				inputStream.close();
+				if (result == RESULT_OK || result == RESULT_LAZY) {
+					archive.delete();
+				}
 			} catch (Exception e) {
-				Log.e(TAG,e.getLocalizedMessage(), e);
-				result = RESULT_ERROR;
-			} finally {
-				if (inputStream != null) {
-					try {
-						inputStream.close();
-					} catch (IOException e) {
-					}
+				result = getResult(control, e);
+				if (result == RESULT_CANCELED) {
+					discardJournal(getJournalFile(context, archive.getName()), baseDir, url);
+					archive.delete();
+					SegmentedDownload.deleteState(archive);
 				}
 			}
+			reportMetrics(control, url, result);
+		} else {
+			result = RESULT_CANCELED;
+		}
+
+		notifyResult(context, result, tag, notificationManager, notificationBuilder);
+
+		return result;
+	}
+
+	/**
+	 * Extracts the archive at <code>url</code> while it is being downloaded. The archive is never stored, its bytes
+	 * are inflated and written as they arrive from the network.
+	 */
+	public static int unzip(Context context, String url, Uri outputURI) {
+		return unzip(context, url, outputURI, UnzipOptions.DEFAULT);
+	}
+
+	/**
+	 * Like {@link #unzip(Context, String, Uri)}. Of the options only verify and pack apply, small files are packed if
+	 * their size precedes their content in the stream.
+	 */
+	public static int unzip(Context context, String url, Uri outputURI, UnzipOptions options) {
+
+		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(), 0);
+
+		String tag = getNotificationTag(url);
+		ExtractionControl control = getControl(url);
+
+		NotificationManagerCompat notificationManager = getNotificationManager(context, control);
 
+		NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context);
+		notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
+		notificationBuilder.setContentTitle("Unpacking package");
+		notificationBuilder.setWhen(System.currentTimeMillis());
+		notificationBuilder.setContentIntent(contentIntent);
+
+		int result = RESULT_OK;
+		File baseDir = null;
+		if (outputURI != null && url != null) {
+			baseDir = new File(outputURI.getPath());
+			if (!baseDir.exists()) {
+				baseDir.mkdirs();
+			}
+
+			MediaScanQueue scanner = new MediaScanQueue(context.getApplicationContext());
+			try {
+				DownloadPipe pipe = new DownloadPipe(new URL(url));
+				String title = Uri.parse(url).getLastPathSegment();
+				NotificationProgress progress = new NotificationProgress(context, title, tag, notificationManager,
+						notificationBuilder);
+
+				ArchiveExtractor extractor = new ArchiveExtractor(baseDir, getPackageName(url));
+				extractor.setVerify(options.isVerify());
+				extractor.setPackThreshold(options.isPack() ? PackWriter.DEFAULT_THRESHOLD : 0);
+				extractor.setControl(control);
+				extractor.setProgress(progress);
+				extractor.setFileListener(scanner);
+				extractor.extract(pipe);
+				pipe.checkError();
+			} catch (Exception e) {
+				// a stream can not be continued, pausing it stops it like a cancel and its new files are removed
+				result = getResult(control, e) == RESULT_ERROR ? RESULT_ERROR : RESULT_CANCELED;
+			} finally {
+				scanner.finish();
+			}
+			reportMetrics(control, url, result);
 		} else {
 			result = RESULT_CANCELED;
 		}
 
+		notifyResult(context, result, tag, notificationManager, notificationBuilder);
+
+		return result;
+	}
+
+	/**
+	 * Jobs run concurrently, each of them updates the unzip notification with its own tag.
+	 */
+	private static String getNotificationTag(String key) {
+		return "unzip:" + key;
+	}
+
+	/**
+	 * @return the notification manager or <code>null</code> if the job is silent
+	 */
+	private static NotificationManagerCompat getNotificationManager(Context context, ExtractionControl control) {
+		return control.isSilent() ? null : NotificationManagerCompat.from(context);
+	}
+
+	private static void notifyResult(Context context, int result, String tag,
+			NotificationManagerCompat notificationManager, NotificationCompat.Builder notificationBuilder) {
+		if (notificationManager == null) {
+			return;
+		}
 		switch (result) {
 		case RESULT_OK:
+		case RESULT_LAZY:
 			notificationBuilder.setContentTitle("Unpacking completed");
 			notificationBuilder.setContentText(context.getString(R.string.download_finished));
 			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
 			notificationBuilder.setProgress(100, 100, false);
-			notificationManager.notify(UNZIP_ID, notificationBuilder.build());
-			notificationManager.cancel(UNZIP_ID);
-
-			MediaScannerWrapper wrapper = new MediaScannerWrapper(context.getApplicationContext(),
-					baseDir.getAbsolutePath(), "image/*");
-			wrapper.scan();
-
+			notificationManager.notify(tag, UNZIP_ID, notificationBuilder.build());
+			notificationManager.cancel(tag, UNZIP_ID);
 			break;
 		case RESULT_CANCELED:
-			notificationManager.cancel(UNZIP_ID);
+			notificationManager.cancel(tag, UNZIP_ID);
+			break;
+		case RESULT_PAUSED:
+			notificationBuilder.setContentTitle("Unpacking paused");
+			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+			notificationBuilder.setProgress(0, 0, false);
+			notificationManager.notify(tag, UNZIP_ID, notificationBuilder.build());
 			break;
 		case RESULT_ERROR:
 			notificationBuilder.setContentTitle("Unpacking failed");
 			notificationBuilder.setContentText(context.getString(R.string.download_error));
 			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
 			notificationBuilder.setProgress(100, 100, false);
-			notificationManager.notify(UNZIP_ID, notificationBuilder.build());
+			notificationManager.notify(tag, UNZIP_ID, notificationBuilder.build());
+			break;
+		case RESULT_NO_SPACE:
+			notificationBuilder.setContentTitle("Unpacking failed");
+			notificationBuilder.setContentText(context.getString(R.string.download_no_space));
+			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
+			notificationBuilder.setProgress(0, 0, false);
+			notificationManager.notify(tag, UNZIP_ID, notificationBuilder.build());
 			break;
 		}
+	}
 
-		return result;
+	/**
+	 * Checks the free space of the output volume before anything is written and picks how the package is installed:
+	 * extracted in place if its files fit, otherwise kept as archive if that fits.
+	 *
+	 * @param archiveSpace
+	 *            space the archive takes on the output volume if it is kept
+	 * @return {@link #RESULT_OK} to extract, {@link #RESULT_LAZY} to keep the archive or {@link #RESULT_NO_SPACE},
+	 *         the channel is closed then and if the check fails
+	 */
+	@SuppressWarnings("deprecation")
+	private static int checkSpace(FileChannel channel, String uri, File journalFile, File baseDir,
+			UnzipOptions options, long archiveSpace) throws IOException {
+		try {
+			StatFs stat = new StatFs(baseDir.getPath());
+			long blockSize;
+			long available;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+				blockSize = stat.getBlockSizeLong();
+				available = stat.getAvailableBytes();
+			} else {
+				blockSize = stat.getBlockSize();
+				available = (long) stat.getAvailableBlocks() * blockSize;
+			}
+			available -= MIN_FREE_SPACE;
+
+			if (!options.isLazy()) {
+				ArchiveExtractor extractor = new ArchiveExtractor(baseDir, getPackageName(uri));
+				extractor.setJournalFile(journalFile);
+				extractor.setPackThreshold(options.isPack() ? PackWriter.DEFAULT_THRESHOLD : 0);
+				long required = extractor.getRequiredSpace(channel, blockSize);
+				if (required <= available) {
+					return RESULT_OK;
+				}
+				Log.w(TAG, "Extracting " + uri + " needs " + required + " bytes, " + available + " are available");
+			}
+			if (archiveSpace <= available) {
+				return RESULT_LAZY;
+			}
+			Log.w(TAG, "Keeping " + uri + " needs " + archiveSpace + " bytes, " + available + " are available");
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		channel.close();
+		return RESULT_NO_SPACE;
+	}
+
+	/**
+	 * Copies the downloaded archive into the output directory for a lazy install. Its central directory is indexed
+	 * before it replaces the previous archive, so a broken download never replaces a working package.
+	 */
+	private static int keepArchive(FileChannel in, String uri, File baseDir, NotificationProgress progress)
+			throws IOException {
+		File target = getArchiveFile(baseDir, uri);
+		File tmp = new File(target.getPath() + ".tmp");
+		try {
+			FileChannel out = new FileOutputStream(tmp).getChannel();
+			try {
+				long size = in.size();
+				progress.setTotal(size);
+				long position = 0;
+				while (position < size) {
+					long count = in.transferTo(position, Math.min(size - position, COPY_CHUNK_SIZE), out);
+					if (count <= 0) {
+						throw new IOException("Could not copy " + uri);
+					}
+					position += count;
+					progress.add(count);
+				}
+				ZipIndex.read(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		progress.finish();
+		if (!installArchive(tmp, target, uri, baseDir)) {
+			tmp.delete();
+			throw new IOException("Could not install " + target);
+		}
+		return RESULT_OK;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see android.app.IntentService#onHandleIntent(android.content.Intent)
+	/**
+	 * Renames the downloaded archive into the output directory for a lazy install.
+	 *
+	 * @return <code>false</code> if it is on another file system and has to be copied
 	 */
+	private static boolean moveArchive(File archive, String uri, File baseDir) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(archive, "r");
+		try {
+			ZipIndex.read(file.getChannel());
+		} finally {
+			file.close();
+		}
+		return installArchive(archive, getArchiveFile(baseDir, uri), uri, baseDir);
+	}
+
+	private static boolean installArchive(File archive, File target, String uri, File baseDir) {
+		if (!archive.renameTo(target)) {
+			return false;
+		}
+
+		// the cached files belong to the previous version of the package
+		deleteTree(getArchiveCacheDir(baseDir, uri));
+		return true;
+	}
+
+	private static void deleteArchive(File baseDir, String uri) {
+		getArchiveFile(baseDir, uri).delete();
+		deleteTree(getArchiveCacheDir(baseDir, uri));
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		scheduler = new ExtractionScheduler(maxConcurrentJobs);
+	}
+
+	@Override
+	public int onStartCommand(final Intent intent, int flags, int startId) {
+		final String key = getJobKey(intent);
+
+		synchronized (jobs) {
+			lastStartId = startId;
+			if (!jobs.add(key)) {
+				Log.d(TAG, "Extraction of " + key + " is already scheduled");
+				return START_NOT_STICKY;
+			}
+			ExtractionControl control = new ExtractionControl(intent.getLongExtra(INTENT_DOWNLOAD_ID, -1));
+			if (intent.getBooleanExtra(INTENT_CANCELED, false)) {
+				control.cancel();
+			}
+			control.setSilent(intent.getBooleanExtra(INTENT_SILENT, false));
+			controls.put(key, control);
+		}
+
+		scheduler.setMaxConcurrent(maxConcurrentJobs);
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					onHandleIntent(intent);
+				} finally {
+					onJobFinished(key);
+				}
+			}
+		}, intent.getIntExtra(INTENT_PRIORITY, 0));
+
+		// redelivered intents would repeat finished jobs and resume paused ones. A job lost with the process is started
+		// again from the PendingUnzipRegistry by the next reconcile, the journal lets it continue where it stopped.
+		return START_NOT_STICKY;
+	}
+
+	private static String getJobKey(Intent intent) {
+		String url = intent.getStringExtra(INTENT_DOWNLOAD_URL);
+		return url != null ? url : Long.toString(intent.getLongExtra(INTENT_DOWNLOAD_ID, -1));
+	}
+
+	private void onJobFinished(String key) {
+		synchronized (jobs) {
+			jobs.remove(key);
+			controls.remove(key);
+			if (jobs.isEmpty()) {
+				// does nothing if another job has been started in the meantime
+				stopSelf(lastStartId);
+			}
+		}
+	}
+
 	@Override
+	public void onDestroy() {
+		scheduler.shutdown();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
 	protected void onHandleIntent(Intent intent) {
 		long downloadId = intent.getLongExtra(INTENT_DOWNLOAD_ID, -1);
+		String url = intent.getStringExtra(INTENT_DOWNLOAD_URL);
 		Uri outputURI = Uri.parse(intent.getStringExtra(INTENT_OUTPUT_URI));
 
-		int result = unzip(this, downloadId, outputURI);
+		UnzipOptions options = UnzipOptions.fromIntent(intent);
+		int connections = intent.getIntExtra(INTENT_CONNECTIONS, 1);
+
+		int result;
+		if (url != null && (connections > 1 || options.isLazy())) {
+			// a lazy install keeps the archive, it can not be streamed
+			result = unzip(this, url, outputURI, Math.max(1, connections), options);
+		} else if (url != null) {
+			result = unzip(this, url, outputURI, options);
+		} else {
+			result = unzip(this, downloadId, outputURI, options);
+		}
+
+		if (result == RESULT_PAUSED && downloadId != -1) {
+			intent.removeExtra(INTENT_CANCELED);
+			pausedJobs.put(downloadId, intent);
+		}
+		if (downloadId >= 0) {
+			// finished, failed or paused, the job is not started again after a restart of the process
+			PendingUnzipRegistry.getInstance(this).remove(downloadId);
+		}
 
 		Intent broadcastIntent = new Intent(ACTION_UNZIP_COMPLETE);
 		broadcastIntent.putExtra(INTENT_RESULT, result);
+		ExtractionControl control = controls.get(getJobKey(intent));
+		if (control != null && control.getMetrics() != null) {
+			broadcastIntent.putExtra(INTENT_METRICS, toBundle(control.getMetrics()));
+		}
+		if (url != null) {
+			broadcastIntent.putExtra(INTENT_DOWNLOAD_URL, url);
+		}
+		if (downloadId != -1) {
+			broadcastIntent.putExtra(INTENT_DOWNLOAD_ID, downloadId);
+		}
 		sendBroadcast(broadcastIntent);
 
 	}
 
-    static class MediaScannerWrapper implements MediaScannerConnection.MediaScannerConnectionClient {
+	/**
+	 * Shows the progress, throughput and remaining time of an extraction in the unzip notification. Updates are rate
+	 * limited by {@link ExtractionProgress}.
+	 */
+	static class NotificationProgress extends ExtractionProgress {
+
+		private final Context context;
+		private final String tag;
+		private final NotificationManagerCompat notificationManager;
+		private final NotificationCompat.Builder notificationBuilder;
+
+		NotificationProgress(Context context, String title, String tag,
+				NotificationManagerCompat notificationManager, NotificationCompat.Builder notificationBuilder) {
+			this.context = context;
+			this.tag = tag;
+			this.notificationManager = notificationManager;
+			this.notificationBuilder = notificationBuilder;
+
+			notificationBuilder.setContentTitle(title);
+			notificationBuilder.setOnlyAlertOnce(true);
+		}
+
+		@Override
+		protected void onProgress(long done, long total, long bytesPerSecond, long eta, String current) {
+			if (notificationManager == null) {
+				return;
+			}
+			notificationBuilder.setContentText(current);
+			if (total > 0) {
+				notificationBuilder.setProgress(100, (int) Math.min(100, done * 100 / total), false);
+			} else {
+				notificationBuilder.setProgress(0, 0, true);
+			}
+
+			String speed = Formatter.formatShortFileSize(context, bytesPerSecond);
+			if (eta >= 0) {
+				notificationBuilder.setSubText(context.getString(R.string.unzip_progress_eta, speed,
+						DateUtils.formatElapsedTime(eta / 1000)));
+			} else {
+				notificationBuilder.setSubText(context.getString(R.string.unzip_progress, speed));
+			}
+
+			notificationManager.notify(tag, UNZIP_ID, notificationBuilder.build());
+		}
+	}
+
+	/**
+	 * Hard links through the system calls available since Android 5.0.
+	 */
+	static class OsLinks implements ContentStore.Links {
+
+		@Override
+		public boolean link(File existing, File link) {
+			try {
+				Os.link(existing.getPath(), link.getPath());
+				return true;
+			} catch (ErrnoException e) {
+				Log.w(TAG, "Could not link " + link + " to " + existing, e);
+				return false;
+			}
+		}
+
+		@Override
+		public int getLinkCount(File file) {
+			try {
+				return (int) Os.stat(file.getPath()).st_nlink;
+			} catch (ErrnoException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Preallocation through <code>posix_fallocate</code>, available since Android 5.0. File systems without support
+	 * for it are not asked again.
+	 */
+	static class OsAllocator implements EntryWriter.Allocator {
+
+		private volatile boolean supported = true;
+
+		@Override
+		public boolean allocate(FileDescriptor fd, long length) {
+			if (!supported) {
+				return false;
+			}
+			try {
+				Os.posix_fallocate(fd, 0, length);
+				return true;
+			} catch (ErrnoException e) {
+				if (e.errno == OsConstants.EOPNOTSUPP || e.errno == OsConstants.ENOSYS) {
+					supported = false;
+				} else {
+					Log.w(TAG, "Could not preallocate " + length + " bytes", e);
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Hands the media files written by an extraction to the media scanner while the extraction is still running. Only
+	 * files with a media mime type are scanned, they are submitted in batches through one connection which is
+	 * disconnected once all scans have completed after {@link #finish()}.
+	 */
+	static class MediaScanQueue implements MediaScannerConnection.MediaScannerConnectionClient,
+			ExtractedFileListener {
+
+		private static final int BATCH_SIZE = 32;
+
+		private final MediaScannerConnection connection;
+
+		private final List<String> paths = new ArrayList<>();
+		private final List<String> mimeTypes = new ArrayList<>();
+
+		private boolean connecting;
+		private boolean connected;
+		private boolean finished;
+		private int scanning;
 
-        private MediaScannerConnection mConnection;
-        private String mPath;
-        private String mMimeType;
+		MediaScanQueue(Context context) {
+			connection = new MediaScannerConnection(context, this);
+		}
+
+		static String getMediaType(File file) {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			if (dot < 0) {
+				return null;
+			}
+			String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+					name.substring(dot + 1).toLowerCase(Locale.US));
+			if (mimeType == null) {
+				return null;
+			} else if (mimeType.startsWith("image/") || mimeType.startsWith("audio/")
+					|| mimeType.startsWith("video/")) {
+				return mimeType;
+			} else {
+				return null;
+			}
+		}
+
+		@Override
+		public void onFileWritten(File file) {
+			String mimeType = getMediaType(file);
+			if (mimeType == null) {
+				return;
+			}
+			synchronized (this) {
+				paths.add(file.getAbsolutePath());
+				mimeTypes.add(mimeType);
+				if (!connecting) {
+					connecting = true;
+					connection.connect();
+				} else if (connected && paths.size() >= BATCH_SIZE) {
+					submit();
+				}
+			}
+		}
 
-        // filePath - where to scan;
-        // mime type of media to scan i.e. "image/jpeg".
-        // use "*/*" for any media
-        public MediaScannerWrapper(Context ctx, String filePath, String mime) {
-            mPath = filePath;
-            mMimeType = mime;
-            mConnection = new MediaScannerConnection(ctx, this);
-        }
+		/**
+		 * No more files will be added, remaining files are submitted and the connection is closed when done.
+		 */
+		public synchronized void finish() {
+			finished = true;
+			if (connected) {
+				submit();
+				disconnectIfDone();
+			}
+		}
 
-        // do the scanning
-        public void scan() {
-            mConnection.connect();
-        }
+		@Override
+		public synchronized void onMediaScannerConnected() {
+			connected = true;
+			submit();
+			disconnectIfDone();
+		}
+
+		@Override
+		public synchronized void onScanCompleted(String path, Uri uri) {
+			scanning--;
+			disconnectIfDone();
+		}
 
-        // start the scan when scanner is ready
-        public void onMediaScannerConnected() {
-            mConnection.scanFile(mPath, mMimeType);
-        }
+		private void submit() {
+			for (int i = 0; i < paths.size(); i++) {
+				connection.scanFile(paths.get(i), mimeTypes.get(i));
+				scanning++;
+			}
+			paths.clear();
+			mimeTypes.clear();
+		}
 
-        public void onScanCompleted(String path, Uri uri) {
-            mConnection.disconnect();
-        }
-    }
+		private void disconnectIfDone() {
+			if (finished && connected && scanning <= 0 && paths.isEmpty()) {
+				connection.disconnect();
+				connected = false;
+			}
+		}
+	}
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.content.Intent;
+
+/**
+ * How a downloaded archive is installed. The same options travel from the {@link Downloader} through the
+ * {@link PendingUnzipRegistry} to the {@link UnzipIntentService}. Immutable, created with a {@link Builder}:
+ *
+ * <pre>
+ * UnzipOptions options = new UnzipOptions.Builder().setParallel(true).setVerify(true).build();
+ * UnzipIntentService.unzip(context, downloadId, outputURI, options);
+ * </pre>
+ */
+public final class UnzipOptions {
+
+	/**
+	 * Streams the archive sequentially into plain files, without any of the options.
+	 */
+	public static final UnzipOptions DEFAULT = new Builder().build();
+
+	public static final class Builder {
+		private boolean parallel;
+		private boolean update;
+		private boolean verify;
+		private boolean dedup;
+		private boolean lazy;
+		private boolean pack;
+		private boolean silent;
+		private int priority;
+
+		public Builder() {
+		}
+
+		/**
+		 * Starts with the values of <code>options</code>.
+		 */
+		public Builder(UnzipOptions options) {
+			parallel = options.parallel;
+			update = options.update;
+			verify = options.verify;
+			dedup = options.dedup;
+			lazy = options.lazy;
+			pack = options.pack;
+			silent = options.silent;
+			priority = options.priority;
+		}
+
+		/**
+		 * If <code>true</code> the central directory of the archive is read and the entries are inflated on a worker
+		 * pool sized to the number of cores, otherwise the archive is streamed sequentially.
+		 */
+		public Builder setParallel(boolean parallel) {
+			this.parallel = parallel;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> entries whose size and crc match the manifest of the existing install are not written
+		 * again and files which are no longer part of the archive are removed.
+		 */
+		public Builder setUpdate(boolean update) {
+			this.update = update;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> the crc of each entry is checked and the SHA-256 digests of the files are written next
+		 * to the manifest, both computed while the files are written.
+		 */
+		public Builder setVerify(boolean verify) {
+			this.verify = verify;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> files are hard links into a content addressed store in the output directory, contents
+		 * already stored by another package are linked instead of written again. Needs Android 5.0, files are written
+		 * as usual on older versions, on file systems without hard links and by streaming downloads.
+		 */
+		public Builder setDedup(boolean dedup) {
+			this.dedup = dedup;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> nothing is extracted, the archive is kept in the output directory and its files are
+		 * extracted on demand by {@link PackageArchive}. The other options do not apply then.
+		 */
+		public Builder setLazy(boolean lazy) {
+			this.lazy = lazy;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> files up to {@link PackWriter#DEFAULT_THRESHOLD} bytes are concatenated into one pack
+		 * file instead of being written one by one, read them with {@link PackFile}.
+		 */
+		public Builder setPack(boolean pack) {
+			this.pack = pack;
+			return this;
+		}
+
+		/**
+		 * If <code>true</code> the extraction shows no notification of its own, e.g. as member of a
+		 * {@link DownloadBatch}.
+		 */
+		public Builder setSilent(boolean silent) {
+			this.silent = silent;
+			return this;
+		}
+
+		/**
+		 * Archives with a higher priority are extracted first when several are waiting. Defaults to 0.
+		 */
+		public Builder setPriority(int priority) {
+			this.priority = priority;
+			return this;
+		}
+
+		public UnzipOptions build() {
+			return new UnzipOptions(this);
+		}
+	}
+
+	private final boolean parallel;
+	private final boolean update;
+	private final boolean verify;
+	private final boolean dedup;
+	private final boolean lazy;
+	private final boolean pack;
+	private final boolean silent;
+	private final int priority;
+
+	private UnzipOptions(Builder builder) {
+		parallel = builder.parallel;
+		update = builder.update;
+		verify = builder.verify;
+		dedup = builder.dedup;
+		lazy = builder.lazy;
+		pack = builder.pack;
+		silent = builder.silent;
+		priority = builder.priority;
+	}
+
+	/**
+	 * Reads the options from the extras of a start request of the {@link UnzipIntentService}.
+	 */
+	static UnzipOptions fromIntent(Intent intent) {
+		return new Builder().setParallel(intent.getBooleanExtra(UnzipIntentService.INTENT_PARALLEL, false))
+				.setUpdate(intent.getBooleanExtra(UnzipIntentService.INTENT_UPDATE, false))
+				.setVerify(intent.getBooleanExtra(UnzipIntentService.INTENT_VERIFY, false))
+				.setDedup(intent.getBooleanExtra(UnzipIntentService.INTENT_DEDUP, false))
+				.setLazy(intent.getBooleanExtra(UnzipIntentService.INTENT_LAZY, false))
+				.setPack(intent.getBooleanExtra(UnzipIntentService.INTENT_PACK, false))
+				.setSilent(intent.getBooleanExtra(UnzipIntentService.INTENT_SILENT, false))
+				.setPriority(intent.getIntExtra(UnzipIntentService.INTENT_PRIORITY, 0)).build();
+	}
+
+	/**
+	 * Adds the options to a start request of the {@link UnzipIntentService}.
+	 */
+	void putExtras(Intent intent) {
+		intent.putExtra(UnzipIntentService.INTENT_PARALLEL, parallel);
+		intent.putExtra(UnzipIntentService.INTENT_UPDATE, update);
+		intent.putExtra(UnzipIntentService.INTENT_VERIFY, verify);
+		intent.putExtra(UnzipIntentService.INTENT_DEDUP, dedup);
+		intent.putExtra(UnzipIntentService.INTENT_LAZY, lazy);
+		intent.putExtra(UnzipIntentService.INTENT_PACK, pack);
+		intent.putExtra(UnzipIntentService.INTENT_SILENT, silent);
+		intent.putExtra(UnzipIntentService.INTENT_PRIORITY, priority);
+	}
+
+	/**
+	 * @return <code>true</code> if both options install an archive the same way, they may differ in priority and in
+	 *         showing a notification
+	 */
+	boolean isSameInstall(UnzipOptions other) {
+		return parallel == other.parallel && update == other.update && verify == other.verify && dedup == other.dedup
+				&& lazy == other.lazy && pack == other.pack;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public boolean isUpdate() {
+		return update;
+	}
+
+	public boolean isVerify() {
+		return verify;
+	}
+
+	public boolean isDedup() {
+		return dedup;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public boolean isPack() {
+		return pack;
+	}
+
+	public boolean isSilent() {
+		return silent;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access reader for zip files. The central directory is indexed once by {@link ZipIndex}, afterwards the data
+ * of each entry can be read independently using positional reads on the underlying channel, so several threads may
+ * inflate different entries at the same time.
+ */
+public class ZipArchive implements Closeable {
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	public static final class Entry {
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+
+		Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final FileChannel channel;
+
+	private final ZipIndex index;
+
+	private List<Entry> entries;
+
+	public ZipArchive(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.index = ZipIndex.read(channel);
+	}
+
+	/**
+	 * @return the primitive index of the central directory, listing it does not create an object per entry
+	 */
+	public ZipIndex getIndex() {
+		return index;
+	}
+
+	public synchronized List<Entry> getEntries() {
+		if (entries == null) {
+			List<Entry> list = new ArrayList<>(index.size());
+			for (int i = 0; i < index.size(); i++) {
+				list.add(getEntry(i));
+			}
+			entries = Collections.unmodifiableList(list);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the entry or <code>null</code> if the archive does not contain it
+	 */
+	public Entry getEntry(String name) {
+		int i = index.indexOf(name);
+		return i >= 0 ? getEntry(i) : null;
+	}
+
+	private Entry getEntry(int i) {
+		return new Entry(index.getName(i), index.getMethod(i), index.getCrc(i), index.getCompressedSize(i),
+				index.getSize(i), index.getLocalHeaderOffset(i));
+	}
+
+	public long getTotalSize() {
+		return index.getTotalSize();
+	}
+
+	/**
+	 * Returns a stream of the uncompressed entry data. Streams of different entries do not share any state and may be
+	 * consumed concurrently.
+	 */
+	public InputStream getInputStream(Entry entry) throws IOException {
+		long dataOffset = getDataOffset(entry, ByteBuffer.allocate(LOCAL_HEADER_SIZE));
+
+		InputStream raw = new ChannelInputStream(channel, dataOffset, entry.compressedSize);
+		switch (entry.method) {
+		case ZipEntry.STORED:
+			return raw;
+		case ZipEntry.DEFLATED:
+			return new EntryInflaterInputStream(raw);
+		default:
+			throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+		}
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Reads the local header of the entry to find the start of its data.
+	 * 
+	 * @param scratch
+	 *            buffer for the header, at least 30 bytes large
+	 */
+	long getDataOffset(Entry entry, ByteBuffer scratch) throws IOException {
+		scratch.clear();
+		scratch.limit(LOCAL_HEADER_SIZE);
+		scratch.order(ByteOrder.LITTLE_ENDIAN);
+		while (scratch.hasRemaining()) {
+			if (channel.read(scratch, entry.localHeaderOffset + scratch.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		if (scratch.getInt(0) != LOCAL_HEADER_SIG) {
+			throw new ZipException("Invalid local header for " + entry.name);
+		}
+		return entry.localHeaderOffset + LOCAL_HEADER_SIZE + (scratch.getShort(26) & 0xFFFF)
+				+ (scratch.getShort(28) & 0xFFFF);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads a fixed region of the channel without touching the channel position.
+	 */
+	static class ChannelInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		ChannelInputStream(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of zip entry");
+			}
+			position += count;
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Raw deflate streams need one extra dummy byte at the end, see {@link Inflater#Inflater(boolean)}.
+	 */
+	static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean eof;
+
+		EntryInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 8192);
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of zip entry");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			inf.end();
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.ZipException;
+
+/**
+ * Compact index of the central directory of a zip file. The end record and the central directory are memory mapped
+ * and copied into primitive arrays, names are kept as one block of UTF-8 bytes. Listing the archive, its total size and
+ * looking up an entry by name need no further I/O and no object per entry.
+ */
+public final class ZipIndex {
+
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_HEADER_SIG = 0x06054b50;
+	private static final int ZIP64_END_HEADER_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_HEADER_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int ZIP64_END_HEADER_SIZE = 56;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int count;
+
+	private final byte[] names;
+	/**
+	 * Start of each name in {@link #names}, with one extra element for the end of the last name.
+	 */
+	private final int[] nameStarts;
+
+	private final int[] crcs;
+	private final short[] methods;
+	private final long[] compressedSizes;
+	private final long[] sizes;
+	private final long[] localHeaderOffsets;
+
+	/**
+	 * Open addressing hash table of entry index + 1 by name, 0 marks an empty slot.
+	 */
+	private final int[] table;
+
+	private final long totalSize;
+
+	private ZipIndex(int count, byte[] names, int[] nameStarts, int[] crcs, short[] methods, long[] compressedSizes,
+			long[] sizes, long[] localHeaderOffsets) {
+		this.count = count;
+		this.names = names;
+		this.nameStarts = nameStarts;
+		this.crcs = crcs;
+		this.methods = methods;
+		this.compressedSizes = compressedSizes;
+		this.sizes = sizes;
+		this.localHeaderOffsets = localHeaderOffsets;
+
+		long total = 0;
+		for (long size : sizes) {
+			total += size;
+		}
+		this.totalSize = total;
+
+		int capacity = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+		table = new int[capacity];
+		for (int i = 0; i < count; i++) {
+			int slot = hash(names, nameStarts[i], nameStarts[i + 1]) & (capacity - 1);
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * Maps the central directory of the file, the position of the channel is not changed.
+	 */
+	public static ZipIndex read(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+		if (fileSize < END_HEADER_SIZE) {
+			throw new ZipException("File too short to be a zip archive");
+		}
+
+		// the end of central directory record is followed by a variable length comment, scan backwards for it
+		int scanSize = (int) Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+		long scanStart = fileSize - scanSize;
+		ByteBuffer tail = map(channel, scanStart, scanSize);
+		int endPos = -1;
+		for (int i = scanSize - END_HEADER_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_HEADER_SIG) {
+				endPos = i;
+				break;
+			}
+		}
+		if (endPos < 0) {
+			throw new ZipException("End of central directory not found");
+		}
+
+		long count = tail.getShort(endPos + 10) & 0xFFFF;
+		long cdSize = tail.getInt(endPos + 12) & ZIP64_MAGIC;
+		long cdOffset = tail.getInt(endPos + 16) & ZIP64_MAGIC;
+
+		long endOffset = scanStart + endPos;
+		if (endOffset >= ZIP64_LOCATOR_SIZE) {
+			ByteBuffer locator = map(channel, endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+			if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+				long end64Offset = locator.getLong(8);
+				if (end64Offset < 0 || end64Offset + ZIP64_END_HEADER_SIZE > fileSize) {
+					throw new ZipException("Invalid zip64 end of central directory");
+				}
+				ByteBuffer end64 = map(channel, end64Offset, ZIP64_END_HEADER_SIZE);
+				if (end64.getInt(0) != ZIP64_END_HEADER_SIG) {
+					throw new ZipException("Invalid zip64 end of central directory");
+				}
+				count = end64.getLong(32);
+				cdSize = end64.getLong(40);
+				cdOffset = end64.getLong(48);
+			}
+		}
+
+		if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > fileSize || cdSize > Integer.MAX_VALUE
+				|| count < 0 || count * CENTRAL_HEADER_SIZE > cdSize) {
+			throw new ZipException("Invalid central directory");
+		}
+
+		return parse(map(channel, cdOffset, (int) cdSize), (int) count);
+	}
+
+	private static ZipIndex parse(ByteBuffer cd, int count) throws ZipException {
+		int cdSize = cd.limit();
+		// names take less room than their headers, the central directory size bounds them
+		byte[] names = new byte[cdSize - count * CENTRAL_HEADER_SIZE];
+		int[] nameStarts = new int[count + 1];
+		int[] crcs = new int[count];
+		short[] methods = new short[count];
+		long[] compressedSizes = new long[count];
+		long[] sizes = new long[count];
+		long[] offsets = new long[count];
+
+		int pos = 0;
+		int namesEnd = 0;
+		for (int i = 0; i < count; i++) {
+			if (pos + CENTRAL_HEADER_SIZE > cdSize || cd.getInt(pos) != CENTRAL_HEADER_SIG) {
+				throw new ZipException("Invalid central directory header");
+			}
+			int method = cd.getShort(pos + 10) & 0xFFFF;
+			int crc = cd.getInt(pos + 16);
+			long compressedSize = cd.getInt(pos + 20) & ZIP64_MAGIC;
+			long size = cd.getInt(pos + 24) & ZIP64_MAGIC;
+			int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+			long offset = cd.getInt(pos + 42) & ZIP64_MAGIC;
+
+			int namePos = pos + CENTRAL_HEADER_SIZE;
+			int extraPos = namePos + nameLength;
+			int extraEnd = extraPos + extraLength;
+			if (extraEnd + commentLength > cdSize) {
+				throw new ZipException("Invalid central directory header");
+			}
+
+			cd.position(namePos);
+			cd.get(names, namesEnd, nameLength);
+			checkName(names, namesEnd, namesEnd + nameLength);
+			nameStarts[i] = namesEnd;
+			namesEnd += nameLength;
+
+			// zip64 extra field only contains the values which overflowed, in this fixed order
+			while (extraPos + 4 <= extraEnd) {
+				int id = cd.getShort(extraPos) & 0xFFFF;
+				int length = cd.getShort(extraPos + 2) & 0xFFFF;
+				if (id == ZIP64_EXTRA_ID) {
+					int valuePos = extraPos + 4;
+					int fieldEnd = Math.min(valuePos + length, extraEnd);
+					if (size == ZIP64_MAGIC) {
+						size = getZip64Value(cd, valuePos, fieldEnd);
+						valuePos += 8;
+					}
+					if (compressedSize == ZIP64_MAGIC) {
+						compressedSize = getZip64Value(cd, valuePos, fieldEnd);
+						valuePos += 8;
+					}
+					if (offset == ZIP64_MAGIC) {
+						offset = getZip64Value(cd, valuePos, fieldEnd);
+					}
+					break;
+				}
+				extraPos += 4 + length;
+			}
+
+			crcs[i] = crc;
+			methods[i] = (short) method;
+			compressedSizes[i] = compressedSize;
+			sizes[i] = size;
+			offsets[i] = offset;
+			pos = extraEnd + commentLength;
+		}
+		nameStarts[count] = namesEnd;
+
+		return new ZipIndex(count, names, nameStarts, crcs, methods, compressedSizes, sizes, offsets);
+	}
+
+	/**
+	 * @param fieldEnd
+	 *            end of the zip64 extra field, a value must not reach past it into the next field or header
+	 */
+	private static long getZip64Value(ByteBuffer cd, int valuePos, int fieldEnd) throws ZipException {
+		if (valuePos + 8 > fieldEnd) {
+			throw new ZipException("Invalid zip64 extra field");
+		}
+		long value = cd.getLong(valuePos);
+		if (value < 0) {
+			throw new ZipException("Invalid zip64 extra field");
+		}
+		return value;
+	}
+
+	/**
+	 * Rejects absolute names and names with a <code>..</code> segment, they would be extracted outside of the target
+	 * directory.
+	 */
+	static void checkName(String name) throws ZipException {
+		byte[] bytes = name.getBytes(UTF8);
+		checkName(bytes, 0, bytes.length);
+	}
+
+	private static void checkName(byte[] names, int start, int end) throws ZipException {
+		if (end > start && names[start] == '/') {
+			throw new ZipException("Illegal entry name " + new String(names, start, end - start, UTF8));
+		}
+		int segment = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || names[i] == '/') {
+				if (i - segment == 2 && names[segment] == '.' && names[segment + 1] == '.') {
+					throw new ZipException("Illegal entry name " + new String(names, start, end - start, UTF8));
+				}
+				segment = i + 1;
+			}
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, int length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int hash(byte[] data, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ (data[i] & 0xFF)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Uncompressed size of all entries.
+	 */
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * @return the index of the entry or -1 if the archive does not contain it
+	 */
+	public int indexOf(String name) {
+		byte[] key = name.getBytes(UTF8);
+		int mask = table.length - 1;
+		int slot = hash(key, 0, key.length) & mask;
+		for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+			int start = nameStarts[entry - 1];
+			if (nameStarts[entry] - start == key.length && regionMatches(key, start)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean regionMatches(byte[] key, int start) {
+		for (int i = 0; i < key.length; i++) {
+			if (names[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName(int index) {
+		return new String(names, nameStarts[index], nameStarts[index + 1] - nameStarts[index], UTF8);
+	}
+
+	public boolean isDirectory(int index) {
+		int end = nameStarts[index + 1];
+		return end > nameStarts[index] && names[end - 1] == '/';
+	}
+
+	public int getMethod(int index) {
+		return methods[index] & 0xFFFF;
+	}
+
+	public long getCrc(int index) {
+		return crcs[index] & ZIP64_MAGIC;
+	}
+
+	public long getCompressedSize(int index) {
+		return compressedSizes[index];
+	}
+
+	public long getSize(int index) {
+		return sizes[index];
+	}
+
+	long getLocalHeaderOffset(int index) {
+		return localHeaderOffsets[index];
+	}
+}